@@ -0,0 +1,74 @@
+package ru.squareland.benchmark;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.openjdk.jmh.annotations.*;
+import ru.squareland.Deobfuscator;
+import ru.squareland.mapper.CompiledMappings;
+import ru.squareland.mapper.Notch2CsvMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Method name lookups through the class hierarchy, replaying every call site of the synthetic jar.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HierarchyLookupBenchmark {
+    @Param({"1.7.10:joined"})
+    public String mappings;
+
+    private Notch2CsvMapper mapper;
+    private final List<String[]> calls = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        String version = mappings.substring(0, mappings.indexOf(':'));
+        String side = mappings.substring(mappings.indexOf(':') + 1);
+        Path directory = Files.createTempDirectory("lookup");
+        File compiled = directory.resolve("mappings.bin").toFile();
+        CompiledMappings.write(compiled, version, side);
+        File input = directory.resolve("input.jar").toFile();
+        SyntheticJar jar = new SyntheticJar(version, side, Integer.MAX_VALUE);
+        jar.write(input);
+        mapper = new Notch2CsvMapper(CompiledMappings.open(compiled));
+        new Deobfuscator(mapper).loadRelations(input);
+        for (byte[] code : jar.generate().values()) {
+            new ClassReader(code).accept(new ClassVisitor(Opcodes.ASM9) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                    return new MethodVisitor(Opcodes.ASM9) {
+                        @Override
+                        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                            calls.add(new String[]{owner, name, descriptor});
+                        }
+                    };
+                }
+            }, ClassReader.SKIP_DEBUG);
+        }
+        for (File file : directory.toFile().listFiles()) {
+            file.delete();
+        }
+        directory.toFile().delete();
+    }
+
+    @Benchmark
+    public String findMethod() {
+        String[] call = calls.get(next);
+        next = (next + 1) % calls.size();
+        return mapper.mapMethodName(call[0], call[1], call[2]);
+    }
+}
@@ -0,0 +1,46 @@
+package ru.squareland.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.squareland.mapper.CompiledMappings;
+import ru.squareland.mapper.Notch2CsvMapper;
+import ru.squareland.mapper.Notch2SrgMapper;
+import ru.squareland.mapper.Srg2CsvMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MappingLoadBenchmark {
+    @Param({"1.4.7:joined", "1.5.2:client", "1.6.2:client", "1.6.4:joined", "1.7.10:joined", "1.12.2:joined"})
+    public String mappings;
+
+    private String version;
+    private String side;
+    private File compiled;
+
+    @Setup
+    public void setup() throws IOException {
+        version = mappings.substring(0, mappings.indexOf(':'));
+        side = mappings.substring(mappings.indexOf(':') + 1);
+        compiled = Files.createTempFile("mappings", ".bin").toFile();
+        compiled.deleteOnExit();
+        CompiledMappings.write(compiled, version, side);
+    }
+
+    @Benchmark
+    public Object text() throws IOException {
+        return new Object[]{new Notch2SrgMapper(version, side), new Srg2CsvMapper(version)};
+    }
+
+    @Benchmark
+    public Object compiled() throws IOException {
+        return new Notch2CsvMapper(CompiledMappings.open(compiled));
+    }
+}
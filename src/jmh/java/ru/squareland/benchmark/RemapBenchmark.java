@@ -0,0 +1,73 @@
+package ru.squareland.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.squareland.Deobfuscator;
+import ru.squareland.mapper.CompiledMappings;
+import ru.squareland.mapper.Notch2CsvMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemapBenchmark {
+    @Param({"1.7.10:joined"})
+    public String mappings;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private Path directory;
+    private File input;
+    private File output;
+    private Deobfuscator deobfuscator;
+    private List<byte[]> classes;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        String version = mappings.substring(0, mappings.indexOf(':'));
+        String side = mappings.substring(mappings.indexOf(':') + 1);
+        directory = Files.createTempDirectory("remap");
+        File compiled = directory.resolve("mappings.bin").toFile();
+        CompiledMappings.write(compiled, version, side);
+        SyntheticJar jar = new SyntheticJar(version, side, Integer.MAX_VALUE);
+        input = directory.resolve("input.jar").toFile();
+        output = directory.resolve("output.jar").toFile();
+        jar.write(input);
+        classes = new ArrayList<>(jar.generate().values());
+        deobfuscator = new Deobfuscator(new Notch2CsvMapper(CompiledMappings.open(compiled)));
+        deobfuscator.setParallelism(threads);
+        deobfuscator.loadRelations(input);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (var files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] singleClass() {
+        byte[] code = classes.get(next);
+        next = (next + 1) % classes.size();
+        return deobfuscator.process(code);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MINUTES)
+    public void fullJar() throws IOException {
+        deobfuscator.remap(input, output);
+    }
+}
@@ -0,0 +1,118 @@
+package ru.squareland.benchmark;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Builds an obfuscated game jar from a bundled srg file, so the benchmarks run without a real game jar.
+ * Classes get the obfuscated names, fields and method signatures of the srg file, a random but seeded
+ * superclass chain, and method bodies that call, read and instantiate other obfuscated classes.
+ */
+public class SyntheticJar implements Opcodes {
+    private final List<String> classes = new ArrayList<>();
+    private final Map<String, List<String>> fields = new HashMap<>();
+    private final Map<String, List<String[]>> methods = new HashMap<>();
+
+    public SyntheticJar(String version, String side, int limit) throws IOException {
+        InputStream stream = SyntheticJar.class.getResourceAsStream("/mappings/" + version + "/" + side + ".srg");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(Objects.requireNonNull(stream, "missing mappings " + version), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (line.startsWith("CL: ")) {
+                    classes.add(parts[1]);
+                } else if (line.startsWith("FD: ")) {
+                    int slash = parts[1].lastIndexOf('/');
+                    fields.computeIfAbsent(parts[1].substring(0, slash), k -> new ArrayList<>()).add(parts[1].substring(slash + 1));
+                } else if (line.startsWith("MD: ") && !parts[1].contains("<")) {
+                    int slash = parts[1].lastIndexOf('/');
+                    methods.computeIfAbsent(parts[1].substring(0, slash), k -> new ArrayList<>()).add(new String[]{parts[1].substring(slash + 1), parts[2]});
+                }
+            }
+        }
+        if (classes.size() > limit) {
+            classes.subList(limit, classes.size()).clear();
+        }
+    }
+
+    public Map<String, byte[]> generate() {
+        Random random = new Random(42);
+        Map<String, byte[]> generated = new LinkedHashMap<>();
+        for (int i = 0; i < classes.size(); i++) {
+            String name = classes.get(i);
+            String superName = i > 0 && random.nextInt(3) == 0 ? classes.get(random.nextInt(i)) : "java/lang/Object";
+            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+            writer.visit(V1_6, ACC_PUBLIC, name, null, superName, null);
+            for (String field : fields.getOrDefault(name, List.of())) {
+                writer.visitField(ACC_PUBLIC, field, "I", null, null).visitEnd();
+            }
+            for (String[] method : methods.getOrDefault(name, List.of())) {
+                MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, method[0], method[1], null, null);
+                mv.visitCode();
+                for (int call = 0; call < 4; call++) {
+                    String owner = classes.get(random.nextInt(classes.size()));
+                    List<String[]> targets = methods.getOrDefault(owner, List.of());
+                    if (!targets.isEmpty()) {
+                        String[] target = targets.get(random.nextInt(targets.size()));
+                        mv.visitInsn(ACONST_NULL);
+                        for (Type argument : Type.getArgumentTypes(target[1])) {
+                            mv.visitInsn(zero(argument));
+                        }
+                        mv.visitMethodInsn(INVOKEVIRTUAL, owner, target[0], target[1], false);
+                        Type result = Type.getReturnType(target[1]);
+                        if (result.getSort() != Type.VOID) {
+                            mv.visitInsn(result.getSize() == 2 ? POP2 : POP);
+                        }
+                    }
+                    List<String> targetFields = fields.getOrDefault(owner, List.of());
+                    if (!targetFields.isEmpty()) {
+                        mv.visitInsn(ACONST_NULL);
+                        mv.visitFieldInsn(GETFIELD, owner, targetFields.get(random.nextInt(targetFields.size())), "I");
+                        mv.visitInsn(POP);
+                    }
+                    mv.visitTypeInsn(NEW, owner);
+                    mv.visitInsn(POP);
+                }
+                Type result = Type.getReturnType(method[1]);
+                if (result.getSort() == Type.VOID) {
+                    mv.visitInsn(RETURN);
+                } else {
+                    mv.visitInsn(zero(result));
+                    mv.visitInsn(result.getOpcode(IRETURN));
+                }
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
+            }
+            writer.visitEnd();
+            generated.put(name, writer.toByteArray());
+        }
+        return generated;
+    }
+
+    public void write(File file) throws IOException {
+        try (JarOutputStream output = new JarOutputStream(new FileOutputStream(file))) {
+            for (Map.Entry<String, byte[]> e : generate().entrySet()) {
+                output.putNextEntry(new ZipEntry(e.getKey() + ".class"));
+                output.write(e.getValue());
+            }
+        }
+    }
+
+    private static int zero(Type type) {
+        return switch (type.getSort()) {
+            case Type.LONG -> LCONST_0;
+            case Type.FLOAT -> FCONST_0;
+            case Type.DOUBLE -> DCONST_0;
+            case Type.OBJECT, Type.ARRAY -> ACONST_NULL;
+            default -> ICONST_0;
+        };
+    }
+}
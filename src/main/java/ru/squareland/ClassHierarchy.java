@@ -0,0 +1,179 @@
+package ru.squareland;
+
+import org.objectweb.asm.ClassReader;
+import ru.squareland.archive.ArchiveIndex;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Inheritance graph of a set of classes, built from class headers only.
+ * Classes are linked in {@link #sorted()} order, which places every class after its supertypes.
+ */
+public class ClassHierarchy {
+    private static final int MAGIC = 0x4D44484E;
+    private static final int FORMAT = 1;
+
+    private final Map<String, Node> nodes = new HashMap<>();
+
+    /**
+     * Reads the hierarchy of a jar through a {@code <jar>.relations} sidecar index, keyed by the jar's size,
+     * modification time and SHA-256. The index is rebuilt when the jar changes.
+     */
+    public static ClassHierarchy cached(File file, int parallelism) throws IOException {
+        File index = new File(file.getPath() + ".relations");
+        long size = file.length();
+        long modified = file.lastModified();
+        byte[] digest = null;
+        ClassHierarchy hierarchy = null;
+        if (index.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)))) {
+                if (in.readInt() == MAGIC && in.readInt() == FORMAT && in.readLong() == size) {
+                    long indexedModified = in.readLong();
+                    byte[] indexedDigest = in.readNBytes(32);
+                    if (indexedModified != modified) {
+                        digest = digest(file);
+                    }
+                    if (indexedModified == modified) {
+                        return readIndex(in);
+                    }
+                    if (Arrays.equals(indexedDigest, digest)) {
+                        hierarchy = readIndex(in);
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+            if (hierarchy != null) {
+                hierarchy.writeIndex(index, size, modified, digest);
+                return hierarchy;
+            }
+        }
+        hierarchy = read(file, parallelism);
+        hierarchy.writeIndex(index, size, modified, digest != null ? digest : digest(file));
+        return hierarchy;
+    }
+
+    private static ClassHierarchy readIndex(DataInputStream in) throws IOException {
+        ClassHierarchy hierarchy = new ClassHierarchy();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            String superName = in.readBoolean() ? in.readUTF() : null;
+            String[] interfaces = new String[in.readUnsignedShort()];
+            for (int j = 0; j < interfaces.length; j++) {
+                interfaces[j] = in.readUTF();
+            }
+            hierarchy.nodes.put(name, new Node(name, superName, interfaces));
+        }
+        return hierarchy;
+    }
+
+    private void writeIndex(File index, long size, long modified, byte[] digest) throws IOException {
+        File temp = new File(index.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.write(digest);
+            out.writeInt(nodes.size());
+            for (Node node : nodes.values()) {
+                out.writeUTF(node.name);
+                out.writeBoolean(node.superName != null);
+                if (node.superName != null) {
+                    out.writeUTF(node.superName);
+                }
+                out.writeShort(node.interfaces.length);
+                for (String itf : node.interfaces) {
+                    out.writeUTF(itf);
+                }
+            }
+        }
+        Files.move(temp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] digest(File file) throws IOException {
+        try (DigestInputStream in = new DigestInputStream(new FileInputStream(file), MessageDigest.getInstance("SHA-256"))) {
+            in.transferTo(OutputStream.nullOutputStream());
+            return in.getMessageDigest().digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Reads the hierarchy of a jar, inflating and parsing its classes on up to {@code parallelism} threads.
+     */
+    public static ClassHierarchy read(File file, int parallelism) throws IOException {
+        ClassHierarchy hierarchy = new ClassHierarchy();
+        try (ArchiveIndex binary = ArchiveIndex.open(file)) {
+            List<ArchiveIndex.Entry> classes = binary.entries().stream().filter(entry -> entry.name().endsWith(".class")).toList();
+            for (Node node : Parallel.map(classes, parallelism, entry -> node(binary.read(entry)))) {
+                hierarchy.add(node);
+            }
+        }
+        return hierarchy;
+    }
+
+    public static Node node(byte[] code) {
+        ClassReader reader = new ClassReader(code);
+        return new Node(reader.getClassName(), reader.getSuperName(), reader.getInterfaces());
+    }
+
+    public Node add(Node node) {
+        nodes.put(node.name, node);
+        return node;
+    }
+
+    public void addAll(ClassHierarchy hierarchy) {
+        nodes.putAll(hierarchy.nodes);
+    }
+
+    public Collection<Node> nodes() {
+        return Collections.unmodifiableCollection(nodes.values());
+    }
+
+    public List<Node> sorted() {
+        List<Node> order = new ArrayList<>(nodes.size());
+        Set<String> visited = new HashSet<>();
+        Deque<Node> stack = new ArrayDeque<>();
+        for (Node root : new TreeMap<>(nodes).values()) {
+            if (!visited.add(root.name)) {
+                continue;
+            }
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                Node next = null;
+                for (String supertype : stack.peek().supertypes()) {
+                    Node node = nodes.get(supertype);
+                    if (node != null && visited.add(supertype)) {
+                        next = node;
+                        break;
+                    }
+                }
+                if (next != null) {
+                    stack.push(next);
+                } else {
+                    order.add(stack.pop());
+                }
+            }
+        }
+        return order;
+    }
+
+    public record Node(String name, String superName, String[] interfaces) {
+        public List<String> supertypes() {
+            List<String> supertypes = new ArrayList<>(interfaces.length + 1);
+            if (superName != null) {
+                supertypes.add(superName);
+            }
+            supertypes.addAll(Arrays.asList(interfaces));
+            return supertypes;
+        }
+    }
+}
@@ -1,30 +1,97 @@
 package ru.squareland;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.function.Consumer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ClassMapping {
+    private static final Member MISSING = new Member("", "", "", "");
+
     public final String obfuscatedName;
     public final String name;
-    public final Methods methods = new Methods(this);
-    public final Fields fields = new Fields(this);
+    public final Methods methods;
+    public final Fields fields;
     public ClassMapping parent;
     public List<ClassMapping> interfaces = new ArrayList<>();
+    private final Map<String, Map<String, Member>> resolvedFields = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Member>> resolvedMethods = new ConcurrentHashMap<>();
+    private volatile Boolean mapsMembers;
 
     public ClassMapping(String obfuscatedName, String name) {
         this.obfuscatedName = obfuscatedName;
         this.name = name;
+        this.methods = new Methods(this);
+        this.fields = new Fields(this);
+    }
+
+    /**
+     * Copy sharing the member tables of {@code mapping}, with its own place in the hierarchy and its own memos.
+     */
+    public ClassMapping(ClassMapping mapping) {
+        this.obfuscatedName = mapping.obfuscatedName;
+        this.name = mapping.name;
+        this.methods = mapping.methods;
+        this.fields = mapping.fields;
+        this.parent = mapping.parent;
+        this.interfaces = mapping.interfaces;
+    }
+
+    /**
+     * Drops the memoized hierarchy lookups. Must be called on every mapping after {@link #parent} or
+     * {@link #interfaces} change anywhere in the hierarchy.
+     */
+    public void invalidate() {
+        resolvedFields.clear();
+        resolvedMethods.clear();
+        mapsMembers = null;
+    }
+
+    /**
+     * Whether this class or any of its supertypes has member mappings, memoized until {@link #invalidate()}.
+     */
+    public boolean mapsMembers() {
+        Boolean maps = mapsMembers;
+        if (maps == null) {
+            maps = !methods.obfuscatedMethods.isEmpty() || !fields.obfuscatedFields.isEmpty()
+                || parent != null && parent.mapsMembers() || interfaces.stream().anyMatch(ClassMapping::mapsMembers);
+            mapsMembers = maps;
+        }
+        return maps;
+    }
+
+    public Member findField(String name, String signature, boolean obfuscated, boolean searchParent) {
+        if (!obfuscated || !searchParent) {
+            return resolveField(name, signature, obfuscated, searchParent);
+        }
+        Map<String, Member> resolved = resolvedFields.computeIfAbsent(name, n -> new ConcurrentHashMap<>());
+        Member field = resolved.get(signature);
+        if (field == null) {
+            field = resolveField(name, signature, true, true);
+            resolved.put(signature, field != null ? field : MISSING);
+        }
+        return field != MISSING ? field : null;
+    }
+
+    public Member findMethod(String name, String signature, boolean obfuscated, boolean searchParent) {
+        if (!obfuscated || !searchParent) {
+            return resolveMethod(name, signature, obfuscated, searchParent);
+        }
+        Map<String, Member> resolved = resolvedMethods.computeIfAbsent(name, n -> new ConcurrentHashMap<>());
+        Member method = resolved.get(signature);
+        if (method == null) {
+            method = resolveMethod(name, signature, true, true);
+            resolved.put(signature, method != null ? method : MISSING);
+        }
+        return method != MISSING ? method : null;
     }
 
-    public Member findField(String name, String signature, boolean obfuscated, boolean searchParent, Consumer<String> logger) {
+    private Member resolveField(String name, String signature, boolean obfuscated, boolean searchParent) {
         Member field = fields.find(name, signature, obfuscated);
         if (field == null && searchParent) {
-            logger.accept("skip to super field `" + name + ": " + signature + "` search: super = " + (parent == null ? null : parent.name));
+            if (Log.isEnabled(Log.Level.TRACE)) {
+                Log.trace(() -> "skip to super field `" + name + ": " + signature + "` search: super = " + (parent == null ? null : parent.name));
+            }
             if (parent != null) {
-                Member mm = parent.findField(name, signature, obfuscated, true, logger);
+                Member mm = parent.findField(name, signature, obfuscated, true);
                 if (mm != null) {
                     return mm;
                 }
@@ -33,21 +100,25 @@ public class ClassMapping {
         return field;
     }
 
-    public Member findMethod(String name, String signature, boolean obfuscated, boolean searchParent, Consumer<String> logger) {
+    private Member resolveMethod(String name, String signature, boolean obfuscated, boolean searchParent) {
         boolean init = name.equals("<init>");
         Member method = methods.find(name, signature, obfuscated);
         if (method == null && searchParent) {
-            logger.accept("skip to super method `" + name + ": " + signature + "` search: super = " + (parent == null ? null : parent.name));
+            if (Log.isEnabled(Log.Level.TRACE)) {
+                Log.trace(() -> "skip to super method `" + name + ": " + signature + "` search: super = " + (parent == null ? null : parent.name));
+            }
             if (parent != null) {
-                Member mm = parent.findMethod(name, signature, obfuscated, !init, logger);
+                Member mm = parent.findMethod(name, signature, obfuscated, !init);
                 if (mm != null) {
                     return mm;
                 }
             }
             if (!init) {
                 for (ClassMapping itf : interfaces) {
-                    logger.accept("interface = " + itf.name + " (" + itf.obfuscatedName + ")");
-                    Member mm = itf.findMethod(name, signature, obfuscated, true, logger);
+                    if (Log.isEnabled(Log.Level.TRACE)) {
+                        Log.trace(() -> "interface = " + itf.name + " (" + itf.obfuscatedName + ")");
+                    }
+                    Member mm = itf.findMethod(name, signature, obfuscated, true);
                     if (mm != null) {
                         return mm;
                     }
@@ -59,41 +130,69 @@ public class ClassMapping {
 
     public static class Fields {
         public final ClassMapping container;
-        public final Map<String, Member> obfuscatedFields = new HashMap<>();
-        public final Map<String, Member> fields = new HashMap<>();
+        public final MemberTable obfuscatedFields = new MemberTable();
+        public final MemberTable fields = new MemberTable();
 
         public Fields(ClassMapping container) {
             this.container = container;
         }
 
         public Member find(String name, String signature, boolean obfuscated) {
-            return (obfuscated ? obfuscatedFields : fields).get(name + signature);
+            return (obfuscated ? obfuscatedFields : fields).get(name, signature);
         }
 
         public void put(String obfuscatedName, String obfuscatedSignature, String name, String signature) {
             Member mapping = new Member(obfuscatedName, obfuscatedSignature, name, signature);
-            obfuscatedFields.put(obfuscatedName + obfuscatedSignature, mapping);
-            fields.put(name + signature, mapping);
+            obfuscatedFields.put(obfuscatedName, obfuscatedSignature, mapping);
+            fields.put(name, signature, mapping);
         }
     }
 
     public static class Methods {
         public final ClassMapping container;
-        public final Map<String, Member> obfuscatedMethods = new HashMap<>();
-        public final Map<String, Member> methods = new HashMap<>();
+        public final MemberTable obfuscatedMethods = new MemberTable();
+        public final MemberTable methods = new MemberTable();
 
         public Methods(ClassMapping container) {
             this.container = container;
         }
 
         public Member find(String name, String signature, boolean obfuscated) {
-            return (obfuscated ? obfuscatedMethods : methods).get(name + signature);
+            return (obfuscated ? obfuscatedMethods : methods).get(name, signature);
         }
 
         public void put(String obfuscatedName, String obfuscatedSignature, String name, String signature) {
             Member mapping = new Member(obfuscatedName, obfuscatedSignature, name, signature);
-            obfuscatedMethods.put(obfuscatedName + obfuscatedSignature, mapping);
-            methods.put(name + signature, mapping);
+            obfuscatedMethods.put(obfuscatedName, obfuscatedSignature, mapping);
+            methods.put(name, signature, mapping);
+        }
+    }
+
+    /**
+     * Members keyed by name, then by descriptor, so lookups need no concatenated key.
+     */
+    public static class MemberTable {
+        private final Map<String, Map<String, Member>> members = new HashMap<>();
+
+        public Member get(String name, String signature) {
+            Map<String, Member> overloads = members.get(name);
+            return overloads != null ? overloads.get(signature) : null;
+        }
+
+        public void put(String name, String signature, Member member) {
+            members.computeIfAbsent(name, n -> new HashMap<>(2)).put(signature, member);
+        }
+
+        public boolean isEmpty() {
+            return members.isEmpty();
+        }
+
+        public List<Member> values() {
+            List<Member> values = new ArrayList<>();
+            for (Map<String, Member> overloads : members.values()) {
+                values.addAll(overloads.values());
+            }
+            return values;
         }
     }
 
@@ -1,136 +1,363 @@
 package ru.squareland;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.commons.ClassRemapper;
+import ru.squareland.archive.ArchiveIndex;
+import ru.squareland.archive.ArchiveWriter;
+import ru.squareland.archive.Compression;
 import ru.squareland.mapper.Mapper;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
 
 public class Deobfuscator {
     private final Mapper[] mappers;
-    private final Map<String, byte[]> bytecode = new HashMap<>();
-    private final Map<String, byte[]> produced = new HashMap<>();
-    private final Map<String, ClassNode> processed = new ConcurrentHashMap<>();
-    public int step = 0;
+    private final ClassHierarchy relations = new ClassHierarchy();
+    private int parallelism = 1;
+    private RemapCache cache;
+    private Compression compression = Compression.DEFAULT;
+    private boolean reproducible;
 
-    public void trace(String line) {
-        String b = "\t".repeat(Math.max(0, step)) + line;
-        System.out.println(b);
+    public Deobfuscator(Mapper... mappers) {
+        this.mappers = mappers;
     }
 
-    public void etrace(String line) {
-        String b = "\t".repeat(Math.max(0, step)) + line;
-        System.out.println(b);
+    /**
+     * Returns a deobfuscator over {@link Mapper#fork() forks} of the mappers, sharing the relations loaded so far.
+     * Jars remapped through different forks do not see each other's classes and may run concurrently.
+     */
+    public Deobfuscator fork() {
+        Mapper[] forks = new Mapper[mappers.length];
+        for (int i = 0; i < mappers.length; i++) {
+            forks[i] = mappers[i].fork();
+        }
+        Deobfuscator fork = new Deobfuscator(forks);
+        fork.relations.addAll(relations);
+        fork.parallelism = parallelism;
+        fork.cache = cache;
+        fork.compression = compression;
+        fork.reproducible = reproducible;
+        return fork;
     }
 
-    public Deobfuscator(Mapper... mappers) {
-        this.mappers = mappers;
-        for (Mapper mapper : mappers) {
-            mapper.setDeobfuscator(this);
-        }
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Reuses remapped classes across runs. Classes that remapping leaves as they are never go to the cache,
+     * so they are copied through raw on every run.
+     */
+    public void setCache(RemapCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets how the remapped classes are compressed. Other entries are copied with their original compression.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Makes output jars a function of their contents alone: every entry gets the same fixed timestamp and
+     * resources are written in name order, after {@code META-INF/} and the manifest, ahead of the classes,
+     * which always come in internal name order.
+     */
+    public void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
     }
 
     public void loadRelations(File library) throws IOException {
-        for (Mapper mapper : mappers) {
-            mapper.loadRelations(library);
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LOAD_RELATIONS);
+        try {
+            link(ClassHierarchy.cached(library, parallelism));
+        } finally {
+            timer.stop();
         }
     }
 
-    public ClassNode loadNode(String name, HashSet<String> skip) {
-        ClassNode p = this.processed.get(name);
-        if (p != null) {
-            return p;
-        }
-        byte[] cached = findLoaded(name);
-        ClassNode node = cached != null ? process(cached, skip) : null;
-        if (node != null) {
-            trace("Processed node: " + node.name);
-            this.processed.put(name, node);
+    private void link(ClassHierarchy hierarchy) {
+        relations.addAll(hierarchy);
+        for (Mapper mapper : mappers) {
+            mapper.link(hierarchy);
         }
-        return node;
     }
 
-    public byte[] findLoaded(String name) {
-        return bytecode.get(name);
+    public void remap(File inputFile, File outputFile) throws IOException {
+        remap(inputFile, outputFile, null);
     }
 
-    public void remap(File inputFile, File outputFile) throws IOException {
-        this.bytecode.clear();
-        this.produced.clear();
-
-        try (var output = new JarOutputStream(new FileOutputStream(outputFile))) {
-            try (var input = new ZipFile(inputFile)) {
-                Enumeration<? extends ZipEntry> entries = input.entries();
-                while (entries.hasMoreElements()) {
-                    ZipEntry entry = entries.nextElement();
-                    try (InputStream contents = input.getInputStream(entry)) {
-                        String name = entry.getName();
-                        if (!name.endsWith(".class")) {
-                            output.putNextEntry(entry);
-                            contents.transferTo(output);
-                            continue;
+    /**
+     * Remaps {@code inputFile}, writing the result to {@code outputFile} unless it is null and putting every
+     * remapped class, by internal name and in name order, into {@code produced} unless it is null.
+     * <p>
+     * Every class header has to be linked before the first class can be remapped, so classes are inflated and
+     * parsed in a first parallel pass and inflated again by the workers remapping them in the second.
+     */
+    public void remap(File inputFile, File outputFile, Map<String, byte[]> produced) throws IOException {
+        ClassHierarchy hierarchy = new ClassHierarchy();
+        Map<String, ArchiveIndex.Entry> classes = new TreeMap<>();
+        Map<String, RemapCache.Source> sources = new HashMap<>();
+        long time = System.currentTimeMillis();
+        try (var index = ArchiveIndex.open(inputFile);
+             var jar = outputFile != null ? new ArchiveWriter(outputFile, compression, reproducible) : null) {
+            Output output = (name, entry, remapped) -> {
+                if (jar != null) {
+                    Metrics.Timer timer = Metrics.start(Metrics.Phase.WRITE);
+                    try {
+                        if (remapped.unchanged && entry.name().equals(name + ".class")) {
+                            jar.copy(index, entry);
+                        } else {
+                            jar.write(name + ".class", remapped.code, time);
                         }
-                        trace("Loaded file " + name);
-                        bytecode.put(name.substring(0, name.length() - 6), contents.readAllBytes());
+                    } finally {
+                        timer.stop();
+                    }
+                }
+                if (produced != null) {
+                    produced.put(name, remapped.code);
+                }
+            };
+            List<ArchiveIndex.Entry> classEntries = new ArrayList<>();
+            List<ArchiveIndex.Entry> resources = new ArrayList<>();
+            for (ArchiveIndex.Entry entry : index.entries()) {
+                (entry.name().endsWith(".class") ? classEntries : resources).add(entry);
+            }
+            if (reproducible) {
+                resources.sort(Comparator.comparingInt((ArchiveIndex.Entry entry) -> manifestRank(entry.name())).thenComparing(ArchiveIndex.Entry::name));
+            }
+            if (jar != null) {
+                for (ArchiveIndex.Entry entry : resources) {
+                    Metrics.Timer timer = Metrics.start(Metrics.Phase.WRITE);
+                    try {
+                        jar.copy(index, entry);
+                        Metrics.count(Metrics.Counter.RESOURCES_COPIED);
+                    } finally {
+                        timer.stop();
                     }
                 }
             }
-            HashSet<String> skip = new HashSet<>(Set.of("java/lang/Object"));
-            for (Map.Entry<String, byte[]> e : bytecode.entrySet()) {
-                ClassNode node = process(e.getValue(), skip);
-                if (!produced.containsKey(node.name)) {
-                    trace("Processed node2: " + node.name);
-                    processed.put(node.name, node);
+            List<Header> headers = Parallel.map(classEntries, parallelism, entry -> {
+                Metrics.Timer timer = Metrics.start(Metrics.Phase.READ);
+                try {
+                    Log.trace(() -> "Loaded file " + entry.name());
+                    byte[] code = index.read(entry);
+                    Metrics.count(Metrics.Counter.CLASSES_PARSED);
+                    return new Header(entry, ClassHierarchy.node(code), cache != null ? RemapCache.source(code) : null);
+                } finally {
+                    timer.stop();
                 }
+            });
+            for (Header header : headers) {
+                String className = hierarchy.add(header.node).name();
+                classes.put(className, header.entry);
+                if (header.source != null) {
+                    sources.put(className, header.source);
+                }
+            }
+            link(hierarchy);
+            Map<String, byte[]> keys = new HashMap<>();
+            if (cache != null) {
+                RemapCache.Keys derivation = cache.keys(mappers, relations);
+                sources.forEach((className, source) -> keys.put(className, derivation.key(source)));
             }
-            for (Map.Entry<String, byte[]> e : produced.entrySet()) {
-                String name = e.getKey();
-                byte[] bytes = e.getValue();
-                JarEntry entry = new JarEntry(name);
-                output.putNextEntry(entry);
-                try (InputStream cs = new ByteArrayInputStream(bytes)) {
-                    cs.transferTo(output);
-                } catch (Throwable t) {
-                    t.printStackTrace();
+            if (parallelism > 1) {
+                ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+                try {
+                    Deque<Future<Remapped>> pending = new ArrayDeque<>();
+                    Deque<Map.Entry<String, ArchiveIndex.Entry>> names = new ArrayDeque<>();
+                    for (Map.Entry<String, ArchiveIndex.Entry> e : classes.entrySet()) {
+                        pending.add(pool.submit(() -> transform(index, e.getValue(), keys.get(e.getKey()))));
+                        names.add(e);
+                        if (pending.size() >= parallelism * 4) {
+                            Map.Entry<String, ArchiveIndex.Entry> next = names.poll();
+                            output.write(next.getKey(), next.getValue(), Parallel.await(pending.poll()));
+                        }
+                    }
+                    while (!pending.isEmpty()) {
+                        Map.Entry<String, ArchiveIndex.Entry> next = names.poll();
+                        output.write(next.getKey(), next.getValue(), Parallel.await(pending.poll()));
+                    }
+                } finally {
+                    pool.shutdownNow();
+                }
+            } else {
+                for (Map.Entry<String, ArchiveIndex.Entry> e : classes.entrySet()) {
+                    output.write(e.getKey(), e.getValue(), transform(index, e.getValue(), keys.get(e.getKey())));
                 }
             }
         }
     }
 
-    ClassNode process(byte[] code, HashSet<String> skip) {
-        var reader = new ClassReader(code);
-        var node = new ClassNode();
-        reader.accept(node, ClassReader.EXPAND_FRAMES);
-        String fileName = node.name + ".class";
-        if (produced.containsKey(fileName) || skip.contains(node.name)) {
-            etrace("Already processed node: " + fileName);
-            // Already processed
-            return node;
+    /**
+     * Keeps {@code META-INF/} and the manifest ahead of every other entry, where {@link java.util.jar.JarInputStream}
+     * looks for the manifest.
+     */
+    private static int manifestRank(String name) {
+        if (name.equalsIgnoreCase("META-INF/")) {
+            return 0;
         }
+        return name.equalsIgnoreCase(JarFile.MANIFEST_NAME) ? 1 : 2;
+    }
 
-        boolean mapped = false;
+    private Remapped transform(ArchiveIndex input, ArchiveIndex.Entry entry, byte[] key) throws IOException {
+        if (key == null) {
+            return remap(timedRead(input, entry));
+        }
+        byte[] code = cache.get(key);
+        if (code == null) {
+            Metrics.count(Metrics.Counter.CACHE_MISSES);
+            Remapped remapped = remap(timedRead(input, entry));
+            if (!remapped.unchanged) {
+                cache.put(key, remapped.code);
+            }
+            return remapped;
+        }
+        Metrics.count(Metrics.Counter.CACHE_HITS);
+        Log.trace(() -> "Reused cached " + entry.name());
+        return new Remapped(code, false);
+    }
 
-        for (Mapper mapper : mappers) {
-            mapped |= mapper.process(node, skip);
+    private Remapped remap(byte[] code) {
+        byte[] remapped = process(code);
+        return new Remapped(remapped, remapped == code);
+    }
+
+    private static byte[] timedRead(ArchiveIndex input, ArchiveIndex.Entry entry) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.READ);
+        try {
+            return input.read(entry);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Remaps every input to its output, each through its own {@link #fork()}, up to {@code parallelism} jars at once.
+     * A failed jar does not stop the others; the first failure is rethrown once all jars are done.
+     */
+    public void remapAll(Map<File, File> jobs) throws IOException {
+        int concurrency = Math.min(parallelism, Math.max(1, jobs.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            Map<File, Future<File>> pending = new LinkedHashMap<>();
+            for (Map.Entry<File, File> job : jobs.entrySet()) {
+                Deobfuscator fork = fork();
+                fork.setParallelism(parallelism / concurrency);
+                pending.put(job.getKey(), pool.submit(() -> {
+                    fork.remap(job.getKey(), job.getValue());
+                    Log.info("Remapped " + job.getKey().getName());
+                    return job.getValue();
+                }));
+            }
+            IOException failure = null;
+            for (Map.Entry<File, Future<File>> task : pending.entrySet()) {
+                try {
+                    Parallel.await(task.getValue());
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException | RuntimeException e) {
+                    Log.info("Failed to remap " + task.getKey().getName() + ": " + e);
+                    if (failure == null) {
+                        failure = new IOException("Failed to remap " + task.getKey(), e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private interface Output {
+        void write(String name, ArchiveIndex.Entry entry, Remapped remapped) throws IOException;
+    }
+
+    /**
+     * @param unchanged whether {@code code} is the input class itself, passed through without remapping
+     */
+    private record Remapped(byte[] code, boolean unchanged) {}
+
+    private record Header(ArchiveIndex.Entry entry, ClassHierarchy.Node node, RemapCache.Source source) {}
+
+    /**
+     * Remaps a class, or returns {@code code} itself when none of its constants are {@link Mapper#affects affected}
+     * by the mappers.
+     */
+    public byte[] process(byte[] code) {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.PROCESS);
+        try {
+            ClassReader reader = new ClassReader(code);
+            if (!affected(reader, code)) {
+                Metrics.count(Metrics.Counter.CLASSES_PASSED_THROUGH);
+                Log.debug(() -> "Passed class " + reader.getClassName() + " through");
+                return code;
+            }
+            ClassWriter writer = new ClassWriter(reader, 0);
+            ClassVisitor visitor = writer;
+            for (int i = mappers.length - 1; i >= 0; i--) {
+                visitor = new ClassRemapper(visitor, mappers[i]);
+            }
+            reader.accept(visitor, 0);
+            Log.debug(() -> "Mapped class " + reader.getClassName());
+            Metrics.count(Metrics.Counter.CLASSES_REWRITTEN);
+            return writer.toByteArray();
+        } finally {
+            timer.stop();
+        }
+    }
+
+    private boolean affected(ClassReader reader, byte[] code) {
+        char[] buffer = new char[reader.getMaxStringLength()];
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            if (offset == 0) {
+                continue;
+            }
+            if (code[offset - 1] == 1) {
+                String constant = utf8(code, offset, buffer);
+                for (Mapper mapper : mappers) {
+                    if (mapper.affects(constant)) {
+                        return true;
+                    }
+                }
+            } else if (code[offset - 1] == 7) {
+                String name = reader.readUTF8(offset, buffer);
+                for (Mapper mapper : mappers) {
+                    if (mapper.affectsClass(name)) {
+                        return true;
+                    }
+                }
+            }
         }
+        return false;
+    }
 
-        byte[] output;
-        if (mapped) {
-            ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-            node.accept(writer);
-            etrace("Mapped class " + node.name);
-            output = writer.toByteArray();
-        } else {
-            output = code;
+    /**
+     * Decodes the modified UTF-8 constant whose length is at {@code offset}.
+     */
+    private static String utf8(byte[] code, int offset, char[] buffer) {
+        int end = offset + 2 + ((code[offset] & 0xFF) << 8 | code[offset + 1] & 0xFF);
+        int length = 0;
+        for (int i = offset + 2; i < end; ) {
+            int c = code[i++];
+            if ((c & 0x80) == 0) {
+                buffer[length++] = (char) (c & 0x7F);
+            } else if ((c & 0xE0) == 0xC0) {
+                buffer[length++] = (char) (((c & 0x1F) << 6) + (code[i++] & 0x3F));
+            } else {
+                buffer[length++] = (char) (((c & 0xF) << 12) + ((code[i++] & 0x3F) << 6) + (code[i++] & 0x3F));
+            }
         }
-        produced.put(fileName, output);
-        return node;
+        return new String(buffer, 0, length);
     }
 }
@@ -0,0 +1,46 @@
+package ru.squareland;
+
+import java.util.function.Supplier;
+
+/**
+ * Leveled console log. Debug and trace messages are passed as suppliers and are never built while
+ * their level is disabled; hot paths check {@link #isEnabled(Level)} before capturing anything.
+ */
+public final class Log {
+    private static volatile Level level = Level.INFO;
+
+    private Log() {}
+
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    public static boolean isEnabled(Level level) {
+        return Log.level.compareTo(level) >= 0;
+    }
+
+    public static void info(String message) {
+        if (isEnabled(Level.INFO)) {
+            System.out.println(message);
+        }
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            System.out.println(message.get());
+        }
+    }
+
+    public static void trace(Supplier<String> message) {
+        if (isEnabled(Level.TRACE)) {
+            System.out.println(message.get());
+        }
+    }
+
+    public enum Level {
+        QUIET,
+        INFO,
+        DEBUG,
+        TRACE
+    }
+}
@@ -0,0 +1,193 @@
+package ru.squareland;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Run-wide counters and phase timings, written out as a JSON report. Like {@link Log} it is global and off by
+ * default: while disabled, counting is a single branch and timers are a shared no-op. Phase times are summed
+ * over all threads, so phases run on several workers can exceed the wall time of the run.
+ * <p>
+ * With JFR events enabled every timed phase is also committed as a {@code ru.squareland.Phase} event and the
+ * report's counters as {@code ru.squareland.Counter} events, which a running flight recording picks up.
+ */
+public final class Metrics {
+    private static final LongAdder[] COUNTERS = new LongAdder[Counter.values().length];
+    private static final LongAdder[] PHASE_COUNTS = new LongAdder[Phase.values().length];
+    private static final LongAdder[] PHASE_NANOS = new LongAdder[Phase.values().length];
+    private static final Timer NOOP = new Timer(null, 0, null);
+    private static volatile boolean enabled;
+    private static volatile boolean events;
+
+    static {
+        for (int i = 0; i < COUNTERS.length; i++) {
+            COUNTERS[i] = new LongAdder();
+        }
+        for (int i = 0; i < PHASE_NANOS.length; i++) {
+            PHASE_COUNTS[i] = new LongAdder();
+            PHASE_NANOS[i] = new LongAdder();
+        }
+    }
+
+    private Metrics() {}
+
+    public static void enable(boolean jfrEvents) {
+        events = jfrEvents;
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void count(Counter counter) {
+        if (enabled) {
+            COUNTERS[counter.ordinal()].increment();
+        }
+    }
+
+    public static long get(Counter counter) {
+        return COUNTERS[counter.ordinal()].sum();
+    }
+
+    /**
+     * Starts timing {@code phase} until the returned timer is {@link Timer#stop() stopped}.
+     */
+    public static Timer start(Phase phase) {
+        if (!enabled) {
+            return NOOP;
+        }
+        PhaseEvent event = null;
+        if (events) {
+            event = new PhaseEvent();
+            event.phase = Keys.PHASES[phase.ordinal()];
+            event.begin();
+        }
+        return new Timer(phase, System.nanoTime(), event);
+    }
+
+    /**
+     * Writes everything counted so far to {@code file} as JSON.
+     */
+    public static synchronized void writeReport(File file) throws IOException {
+        StringBuilder json = new StringBuilder("{\n  \"counters\": {");
+        for (Counter counter : Counter.values()) {
+            long value = get(counter);
+            json.append(counter.ordinal() == 0 ? "\n" : ",\n").append("    \"").append(Keys.COUNTERS[counter.ordinal()]).append("\": ").append(value);
+            if (events) {
+                CounterEvent event = new CounterEvent();
+                event.counter = Keys.COUNTERS[counter.ordinal()];
+                event.value = value;
+                event.commit();
+            }
+        }
+        json.append("\n  },\n  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            json.append(phase.ordinal() == 0 ? "\n" : ",\n").append("    \"").append(Keys.PHASES[phase.ordinal()]).append("\": {\"count\": ")
+                .append(PHASE_COUNTS[phase.ordinal()].sum()).append(", \"millis\": ")
+                .append(String.format(Locale.ROOT, "%.3f", PHASE_NANOS[phase.ordinal()].sum() / 1e6)).append('}');
+        }
+        json.append("\n  }\n}\n");
+        File temp = new File(file.getPath() + ".tmp");
+        Files.writeString(temp.toPath(), json, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Report keys of the enum constants, camel-cased from their names. Built on first use, after both enums are
+     * initialized, rather than in the enums themselves, which {@code Metrics} initialization would reach first.
+     */
+    private static final class Keys {
+        static final String[] COUNTERS = keys(Counter.values());
+        static final String[] PHASES = keys(Phase.values());
+
+        private static String[] keys(Enum<?>[] constants) {
+            String[] keys = new String[constants.length];
+            for (int i = 0; i < constants.length; i++) {
+                StringBuilder key = new StringBuilder();
+                for (String word : constants[i].name().toLowerCase(Locale.ROOT).split("_")) {
+                    key.append(key.isEmpty() ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+                }
+                keys[i] = key.toString();
+            }
+            return keys;
+        }
+    }
+
+    public enum Counter {
+        CLASSES_PARSED,
+        CLASSES_REWRITTEN,
+        CLASSES_PASSED_THROUGH,
+        RESOURCES_COPIED,
+        CACHE_HITS,
+        CACHE_MISSES,
+        CLASS_LOOKUPS,
+        CLASS_LOOKUP_MISSES,
+        MISSING_SUPERCLASSES,
+        MISSING_INTERFACES
+    }
+
+    public enum Phase {
+        LOAD_MAPPINGS,
+        BUILD_MAPPER,
+        LOAD_RELATIONS,
+        READ,
+        PROCESS,
+        WRITE,
+        DECOMPILE
+    }
+
+    public static final class Timer {
+        private final Phase phase;
+        private final long start;
+        private final PhaseEvent event;
+
+        private Timer(Phase phase, long start, PhaseEvent event) {
+            this.phase = phase;
+            this.start = start;
+            this.event = event;
+        }
+
+        public void stop() {
+            if (phase == null) {
+                return;
+            }
+            PHASE_COUNTS[phase.ordinal()].increment();
+            PHASE_NANOS[phase.ordinal()].add(System.nanoTime() - start);
+            if (event != null) {
+                event.commit();
+            }
+        }
+    }
+
+    @Name("ru.squareland.Phase")
+    @Label("Remap Phase")
+    @Category("ModDeobf")
+    @Description("A timed phase of remapping or decompiling")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("ru.squareland.Counter")
+    @Label("Remap Counter")
+    @Category("ModDeobf")
+    @Description("Value of a remap counter when the report was written")
+    static class CounterEvent extends Event {
+        @Label("Counter")
+        String counter;
+
+        @Label("Value")
+        long value;
+    }
+}
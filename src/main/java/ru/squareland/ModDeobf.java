@@ -2,67 +2,251 @@ package ru.squareland;
 
 import org.jetbrains.java.decompiler.main.decompiler.CancelationManager;
 import org.jetbrains.java.decompiler.main.decompiler.PrintStreamLogger;
+import ru.squareland.archive.Compression;
+import ru.squareland.decompiler.ChannelResultSaver;
 import ru.squareland.decompiler.ConsoleDecompiler;
-import ru.squareland.mapper.Notch2SrgMapper;
-import ru.squareland.mapper.Srg2CsvMapper;
+import ru.squareland.decompiler.IncrementalSource;
+import ru.squareland.decompiler.MemoryContextSource;
+import ru.squareland.mapper.CompiledMappings;
+import ru.squareland.mapper.Notch2CsvMapper;
 
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.stream.IntStream;
 
 public class ModDeobf {
     public static void main(String[] programArgs) throws Exception {
         Properties profile = new Properties();
         profile.load(new FileReader("profile.properties"));
+        Log.setLevel(Log.Level.valueOf(profile.getProperty("log", "info").toUpperCase(Locale.ROOT)));
+        if (profile.getProperty("metrics") != null) {
+            Metrics.enable(Boolean.parseBoolean(profile.getProperty("jfrEvents", "false")));
+        }
+        String daemon = profile.getProperty("daemon");
+        if (daemon != null) {
+            RemapDaemon server = new RemapDaemon(profile);
+            String version = profile.getProperty("version");
+            if (version != null) {
+                server.deobfuscator(version, profile.getProperty("side", "joined"));
+            }
+            server.serve(RemapDaemon.address(daemon));
+            return;
+        }
         String version = Objects.requireNonNull(profile.getProperty("version"), "missing game version");
-        File versionFile = new File(version + ".jar");
-        File deobfVersionFile = new File(version +  ".deobf.jar");
 
-        File inputFile = new File(Objects.requireNonNull(profile.getProperty("input"), "missing input file"));
+        String input = Objects.requireNonNull(profile.getProperty("input"), "missing input file");
         File outputFile = new File(Objects.requireNonNull(profile.getProperty("output"), "missing output file"));
+        Map<File, File> batch = batch(input, outputFile);
+
+        boolean decompile = Boolean.parseBoolean(Objects.requireNonNull(profile.getProperty("decompile"), "missing decompile flag"));
+        boolean writeOutput = !decompile || Boolean.parseBoolean(profile.getProperty("writeOutput", "true"));
+
+        String side = Objects.requireNonNull(profile.getProperty("side"), "missing mapping side");
+        Deobfuscator de = load(profile, version, side);
 
-        Notch2SrgMapper srg = new Notch2SrgMapper(version, Objects.requireNonNull(profile.getProperty("side"), "missing mapping side"));
-        Srg2CsvMapper csv = new Srg2CsvMapper(version);
-        Deobfuscator de = new Deobfuscator(srg, csv);
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        if (batch != null) {
+            de.remapAll(batch);
+        } else {
+            de.remap(new File(input), writeOutput ? outputFile : null, decompile ? classes : null);
+        }
+
+        Log.info("Remapping done");
+
+        if (decompile) {
+            File decompileDir = new File(Objects.requireNonNull(profile.getProperty("decompileDir"), "missing decompileDir"));
+            List<IncrementalSource> sources = new ArrayList<>();
+            if (batch != null) {
+                for (Map.Entry<File, File> job : batch.entrySet()) {
+                    sources.add(new IncrementalSource(decompileDir, job.getValue().getName(), job.getKey(), MemoryContextSource.classes(job.getValue())));
+                }
+            } else {
+                sources.add(new IncrementalSource(decompileDir, outputFile.getName(), new File(input), classes));
+            }
+            decompile(decompileDir, new File(version + ".deobf.jar"), threads(profile), engines(profile), ioThreads(profile), sources);
+        }
+        report(profile);
+    }
+
+    /**
+     * Writes the {@link Metrics} report to the file named by the {@code metrics} profile setting, if any.
+     * Daemon jobs finishing together write it one at a time.
+     */
+    static synchronized void report(Properties profile) throws IOException {
+        String metrics = profile.getProperty("metrics");
+        if (metrics != null) {
+            Metrics.writeReport(new File(metrics));
+        }
+    }
+
+    static Deobfuscator load(Properties profile, String version, String side) throws IOException {
+        return load(profile, CompiledMappings.load(version, side, new File(mappingDir(profile), version + "." + side + ".mappings")));
+    }
+
+    /**
+     * Builds a deobfuscator over a mapping set and links the game relations, remapping the game jar first if needed.
+     */
+    static Deobfuscator load(Properties profile, CompiledMappings mappings) throws IOException {
+        File versionFile = new File(mappings.version() + ".jar");
+        File deobfVersionFile = new File(mappings.version() +  ".deobf.jar");
+        Deobfuscator de;
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.BUILD_MAPPER);
+        try {
+            Notch2CsvMapper mapper = new Notch2CsvMapper(mappings);
+            String libraries = profile.getProperty("libraryPrefixes");
+            if (libraries != null) {
+                mapper.setLibraryPrefixes(Arrays.stream(libraries.split(",")).map(String::trim).filter(prefix -> !prefix.isEmpty()).toList());
+            }
+            de = new Deobfuscator(mapper);
+        } finally {
+            timer.stop();
+        }
+        de.setParallelism(threads(profile));
+        de.setCompression(Compression.parse(profile.getProperty("compression", "default")));
+        de.setReproducible(Boolean.parseBoolean(profile.getProperty("reproducible", "false")));
+        String cache = profile.getProperty("cache");
+        if (cache != null) {
+            de.setCache(new RemapCache(new File(cache), mappings));
+        }
 
         if (!deobfVersionFile.exists() && versionFile.exists()) {
             de.remap(versionFile, deobfVersionFile);
         }  else {
             de.loadRelations(deobfVersionFile);
         }
+        return de;
+    }
 
-        de.remap(inputFile, outputFile);
-
-        System.out.println("Remapping done");
+    /**
+     * Remapping and decompiling threads, all processors unless the profile says otherwise.
+     */
+    static int threads(Properties profile) {
+        String threads = profile.getProperty("threads");
+        return threads != null ? Integer.parseInt(threads) : Runtime.getRuntime().availableProcessors();
+    }
 
-        boolean decompile = Boolean.parseBoolean(Objects.requireNonNull(profile.getProperty("decompile"), "missing decompile flag"));
+    /**
+     * Decompiler engines sharing the decompiling threads, each holding its own copy of the library.
+     */
+    static int engines(Properties profile) {
+        return Integer.parseInt(profile.getProperty("engines", "1"));
+    }
 
-        if (decompile) {
-            File decompileDir = new File(Objects.requireNonNull(profile.getProperty("decompileDir"), "missing decompileDir"));
-            Map<String, Object> mapOptions = new HashMap<>();
-            mapOptions.put("include-runtime", "current");
-            mapOptions.put("decompile-generics", "");
-            mapOptions.put("indent-string", "    ");
+    /**
+     * Where compiled mapping sets are kept, {@code ~/.cache/moddeobf} unless the profile says otherwise.
+     */
+    static File mappingDir(Properties profile) {
+        String directory = profile.getProperty("mappingDir");
+        return directory != null ? new File(directory) : new File(System.getProperty("user.home"), ".cache/moddeobf");
+    }
 
-            PrintStreamLogger logger = new PrintStreamLogger(System.out);
-            ConsoleDecompiler decompiler = new ConsoleDecompiler(decompileDir, mapOptions, logger, ConsoleDecompiler.SaveType.FOLDER);
+    /**
+     * Threads writing decompiled sources, 0 to write them on the decompiler's own threads.
+     */
+    static int ioThreads(Properties profile) {
+        return Integer.parseInt(profile.getProperty("ioThreads", "0"));
+    }
 
-            if (deobfVersionFile.exists()) {
-                decompiler.addLibrary(deobfVersionFile);
+    /**
+     * Decompiles whatever changed in the sources since the last run. The changed top-level classes (with their
+     * inner classes) are dealt out to up to {@code engines} engines running side by side, each seeing the other
+     * classes as a library. The engines share {@code threads} workers between them, and each saves its classes
+     * in source order, handing the files to its share of {@code ioThreads} writers if there are any.
+     */
+    static void decompile(File decompileDir, File library, int threads, int engines, int ioThreads, List<IncrementalSource> sources) throws IOException {
+        List<IncrementalSource> changed = new ArrayList<>();
+        int groups = 0;
+        for (IncrementalSource source : sources) {
+            if (source.scan()) {
+                changed.add(source);
+                groups = Math.max(groups, source.changed());
             }
+        }
+        if (changed.isEmpty()) {
+            Log.info("Decompiled sources are up to date");
+            return;
+        }
 
-            decompiler.addSource(outputFile);
+        int parts = Math.max(1, Math.min(engines, groups));
+        int engineThreads = Math.max(1, threads / parts);
+        int engineIoThreads = ioThreads > 0 ? Math.max(1, ioThreads / parts) : 0;
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.DECOMPILE);
+        try {
+            Parallel.map(IntStream.range(0, parts).boxed().toList(), parts, part -> {
+                decompile(decompileDir, library, engineThreads, engineIoThreads, changed, part, parts);
+                return null;
+            });
+        } catch (CancelationManager.CanceledException var16) {
+            Log.info("Decompilation canceled");
+            return;
+        } finally {
+            timer.stop();
+        }
+        for (IncrementalSource source : changed) {
+            source.save();
+            Log.info("Decompiled " + source.changed() + " changed classes");
+        }
+    }
 
-//            decompiler.addWhitelist(prefix);
+    private static void decompile(File decompileDir, File library, int threads, int ioThreads, List<IncrementalSource> sources, int part, int parts) throws IOException {
+        Map<String, Object> mapOptions = new HashMap<>();
+        mapOptions.put("include-runtime", "current");
+        mapOptions.put("decompile-generics", "");
+        mapOptions.put("indent-string", "    ");
+        mapOptions.put("thread-count", String.valueOf(threads));
 
-            try {
-                decompiler.decompileContext();
-            } catch (CancelationManager.CanceledException var16) {
-                System.out.println("Decompilation canceled");
+        PrintStreamLogger logger = new PrintStreamLogger(System.out);
+        ChannelResultSaver saver = new ChannelResultSaver(decompileDir, ioThreads);
+        ConsoleDecompiler decompiler = new ConsoleDecompiler(decompileDir, mapOptions, logger, saver);
+
+        if (library.exists()) {
+            decompiler.addLibrary(library);
+        }
+        for (IncrementalSource source : sources) {
+            source.addTo(decompiler, part, parts);
+        }
+
+        decompiler.decompileContext();
+        // rethrows what the engine only logged when it closed the saver, leaving the manifests as they were
+        saver.close();
+    }
+
+    /**
+     * Batch mode: {@code input} is a directory of jars or a comma-separated list of jars, and {@code output}
+     * is the directory the remapped jars are written to under their own names. Returns null for a single jar.
+     */
+    private static Map<File, File> batch(String input, File outputDir) {
+        File[] inputs;
+        File directory = new File(input);
+        if (directory.isDirectory()) {
+            inputs = Objects.requireNonNull(directory.listFiles((dir, name) -> name.endsWith(".jar")), "cannot list " + directory);
+            Arrays.sort(inputs);
+        } else if (input.indexOf(',') >= 0) {
+            inputs = Arrays.stream(input.split(",")).map(String::trim).filter(name -> !name.isEmpty()).map(File::new).toArray(File[]::new);
+        } else {
+            return null;
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IllegalArgumentException("cannot create output directory " + outputDir);
+        }
+        Map<File, File> batch = new LinkedHashMap<>();
+        for (File file : inputs) {
+            File output = new File(outputDir, file.getName());
+            if (batch.containsValue(output)) {
+                throw new IllegalArgumentException("duplicate input name " + file.getName());
             }
+            batch.put(file, output);
         }
+        return batch;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,61 @@
+package ru.squareland;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+final class Parallel {
+    private Parallel() {}
+
+    /**
+     * Applies {@code function} to every item on up to {@code parallelism} threads and returns the results in item order.
+     */
+    static <T, R> List<R> map(List<T> items, int parallelism, IOFunction<T, R> function) throws IOException {
+        List<R> results = new ArrayList<>(items.size());
+        if (parallelism <= 1 || items.size() <= 1) {
+            for (T item : items) {
+                results.add(function.apply(item));
+            }
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, items.size()));
+        try {
+            List<Future<R>> pending = new ArrayList<>(items.size());
+            for (T item : items) {
+                pending.add(pool.submit(() -> function.apply(item)));
+            }
+            for (Future<R> task : pending) {
+                results.add(await(task));
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    interface IOFunction<T, R> {
+        R apply(T t) throws IOException;
+    }
+}
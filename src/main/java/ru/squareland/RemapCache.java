@@ -0,0 +1,168 @@
+package ru.squareland;
+
+import org.objectweb.asm.ClassReader;
+import ru.squareland.mapper.CompiledMappings;
+import ru.squareland.mapper.Mapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Persistent store of remapped classes, one file per class under {@code <directory>/<xx>/<rest of key>}.
+ * <p>
+ * A key covers everything the remapped bytes depend on: the remapper version, the mapping set, the input
+ * bytes and the lineage (the class with all of its resolved supertypes) of every class named in the constant
+ * pool.
+ * Class names are hashed as the first mapper maps them, so obfuscated and deobfuscated copies of the
+ * same library hierarchy yield the same keys. Editing a class therefore invalidates the class itself,
+ * its subclasses and the classes calling into them, and nothing else.
+ */
+public class RemapCache {
+    /**
+     * Version of the remapping behaviour, part of every key. Bump it with any change to the remapper or the
+     * mappers that changes the bytes written for the same input, so that entries written before are no longer hit.
+     */
+    static final int REMAPPER_VERSION = 2;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final Path directory;
+    private final byte[] identity;
+
+    public RemapCache(File directory, CompiledMappings mappings) {
+        this.directory = directory.toPath();
+        MessageDigest digest = sha256();
+        update(digest, String.valueOf(REMAPPER_VERSION));
+        digest.update(mappings.digest());
+        update(digest, mappings.version());
+        update(digest, mappings.side());
+        this.identity = digest.digest();
+    }
+
+    /**
+     * Content digest and referenced class names of a class, taken while its bytes are at hand.
+     */
+    public static Source source(byte[] code) {
+        ClassReader reader = new ClassReader(code);
+        char[] buffer = new char[reader.getMaxStringLength()];
+        Set<String> references = new LinkedHashSet<>();
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            if (offset > 0 && reader.readByte(offset - 1) == 7) {
+                references.add(reader.readUTF8(offset, buffer));
+            }
+        }
+        return new Source(sha256().digest(code), references.toArray(String[]::new));
+    }
+
+    public Keys keys(Mapper[] mappers, ClassHierarchy relations) {
+        MessageDigest digest = sha256();
+        digest.update(identity);
+        for (Mapper mapper : mappers) {
+            update(digest, mapper.getClass().getName());
+            update(digest, mapper.fingerprint());
+        }
+        UnaryOperator<String> names = mappers.length > 0 ? mappers[0]::map : UnaryOperator.identity();
+        return new Keys(digest.digest(), relations, names);
+    }
+
+    public byte[] get(byte[] key) {
+        Path path = path(key);
+        try {
+            return Files.isRegularFile(path) ? Files.readAllBytes(path) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public void put(byte[] key, byte[] code) throws IOException {
+        Path path = path(key);
+        Files.createDirectories(path.getParent());
+        Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(temp, code);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private Path path(byte[] key) {
+        String hex = HEX.formatHex(key);
+        return directory.resolve(hex.substring(0, 2)).resolve(hex.substring(2));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    public record Source(byte[] digest, String[] references) {}
+
+    /**
+     * Key derivation for one remap run; lineages are memoized against the relations linked so far.
+     */
+    public class Keys {
+        private final byte[] prefix;
+        private final UnaryOperator<String> names;
+        private final Map<String, ClassHierarchy.Node> nodes = new HashMap<>();
+        private final Map<String, byte[]> lineages = new HashMap<>();
+
+        private Keys(byte[] prefix, ClassHierarchy relations, UnaryOperator<String> names) {
+            this.prefix = prefix;
+            this.names = names;
+            for (ClassHierarchy.Node node : relations.nodes()) {
+                nodes.put(names.apply(node.name()), node);
+            }
+        }
+
+        public byte[] key(Source source) {
+            MessageDigest digest = sha256();
+            digest.update(prefix);
+            digest.update(source.digest());
+            for (String reference : source.references()) {
+                digest.update(lineage(names.apply(reference)));
+            }
+            return digest.digest();
+        }
+
+        private byte[] lineage(String name) {
+            byte[] lineage = lineages.get(name);
+            if (lineage != null) {
+                return lineage;
+            }
+            lineages.put(name, new byte[0]);
+            MessageDigest digest = sha256();
+            update(digest, name);
+            ClassHierarchy.Node node = nodes.get(name);
+            if (node != null) {
+                digest.update((byte) 1);
+                for (String supertype : node.supertypes()) {
+                    digest.update(lineage(names.apply(supertype)));
+                }
+            }
+            lineage = digest.digest();
+            lineages.put(name, lineage);
+            return lineage;
+        }
+    }
+}
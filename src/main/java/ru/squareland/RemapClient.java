@@ -0,0 +1,92 @@
+package ru.squareland;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Thin client of {@link RemapDaemon}.
+ * <pre>
+ * RemapClient &lt;address&gt; &lt;version&gt; &lt;side&gt; &lt;input&gt; &lt;output&gt; [decompileDir]
+ * RemapClient &lt;address&gt; stop
+ * </pre>
+ * An output of {@code -} only decompiles, without writing the remapped jar. Connecting to a loopback port
+ * sends the token the daemon wrote to {@link RemapDaemon#tokenFile(int)}.
+ */
+public class RemapClient implements Closeable {
+    private final SocketChannel channel;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public RemapClient(SocketAddress address) throws IOException {
+        channel = address instanceof UnixDomainSocketAddress ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open();
+        channel.connect(address);
+        in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        if (address instanceof InetSocketAddress inet) {
+            out.writeUTF(Files.readString(RemapDaemon.tokenFile(inet.getPort()), StandardCharsets.UTF_8));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 5 && args.length != 6 || args.length == 2 && !args[1].equals("stop")) {
+            System.err.println("usage: RemapClient <address> <version> <side> <input> <output> [decompileDir]");
+            System.err.println("       RemapClient <address> stop");
+            System.exit(2);
+        }
+        try (RemapClient client = new RemapClient(RemapDaemon.address(args[0]))) {
+            if (args.length == 2) {
+                client.stop();
+            } else {
+                System.out.println(client.remap(args[1], args[2], new File(args[3]), args[4].equals("-") ? null : new File(args[4]), args.length > 5 ? new File(args[5]) : null));
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Remaps {@code input} to {@code output} (if not null) in the daemon, decompiling the result when
+     * {@code decompileDir} is given, and returns the daemon's report. Failures of the job are thrown as
+     * {@link IOException}.
+     */
+    public String remap(String version, String side, File input, File output, File decompileDir) throws IOException {
+        out.writeInt(RemapDaemon.MAGIC);
+        out.writeByte(RemapDaemon.REMAP);
+        out.writeUTF(version);
+        out.writeUTF(side);
+        out.writeUTF(input.getAbsolutePath());
+        out.writeUTF(output != null ? output.getAbsolutePath() : "");
+        out.writeUTF(decompileDir != null ? decompileDir.getAbsolutePath() : "");
+        out.flush();
+        return response();
+    }
+
+    public void stop() throws IOException {
+        out.writeInt(RemapDaemon.MAGIC);
+        out.writeByte(RemapDaemon.STOP);
+        out.flush();
+        response();
+    }
+
+    private String response() throws IOException {
+        boolean success = in.readBoolean();
+        String message = in.readUTF();
+        if (!success) {
+            throw new IOException(message);
+        }
+        return message;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,250 @@
+package ru.squareland;
+
+import ru.squareland.decompiler.IncrementalSource;
+import ru.squareland.mapper.MappingRegistry;
+
+import jdk.net.ExtendedSocketOptions;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resident remapper serving jobs over a Unix-domain or loopback socket. The mappings and game relations of
+ * the versions asked for stay loaded in a {@link MappingRegistry}, and each job runs through a
+ * {@link Deobfuscator#fork()}, so concurrent jobs never see each other's classes.
+ * <p>
+ * Jobs read and write files as the daemon's user, so only that user may submit them. A Unix-domain socket is
+ * made accessible to its owner only, and where the platform reports the peer of a connection, connections of
+ * other users are refused. A loopback port is open to every local user instead, so each connection to it must
+ * first send, as a UTF string, the token the daemon writes to {@link #tokenFile(int)}, readable by its owner only.
+ * <p>
+ * A connection carries any number of requests: int {@link #MAGIC}, byte operation, then for {@link #REMAP}
+ * version, side, input path, output path and decompile directory as UTF strings. An empty output path skips
+ * writing the remapped jar, an empty decompile directory skips decompilation. With metrics enabled the report
+ * is rewritten after every job and covers every job since the daemon started.
+ * Every request is answered with a success flag and a UTF message.
+ */
+public class RemapDaemon {
+    static final int MAGIC = 0x4D445244;
+    static final byte REMAP = 1;
+    static final byte STOP = 2;
+
+    private final MappingRegistry<Deobfuscator> registry;
+    private final int threads;
+    private final int engines;
+    private final int ioThreads;
+    private final Properties profile;
+    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private ServerSocketChannel server;
+
+    /**
+     * Versions beyond the {@code mappingBudget} profile setting (megabytes, a quarter of the heap by default)
+     * are evicted least recently used first.
+     */
+    public RemapDaemon(Properties profile) {
+        String budget = profile.getProperty("mappingBudget");
+        long bytes = budget != null ? Long.parseLong(budget) << 20 : Runtime.getRuntime().maxMemory() / 4;
+        this.registry = new MappingRegistry<>(ModDeobf.mappingDir(profile), bytes, mappings -> ModDeobf.load(profile, mappings));
+        this.threads = ModDeobf.threads(profile);
+        this.engines = ModDeobf.engines(profile);
+        this.ioThreads = ModDeobf.ioThreads(profile);
+        this.profile = profile;
+    }
+
+    /**
+     * Parses a number as a loopback port and anything else as the path of a Unix-domain socket, optionally
+     * prefixed with {@code unix:}.
+     */
+    public static SocketAddress address(String address) {
+        if (!address.isEmpty() && address.chars().allMatch(Character::isDigit)) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(address));
+        }
+        return UnixDomainSocketAddress.of(address.startsWith("unix:") ? address.substring(5) : address);
+    }
+
+    /**
+     * Where the daemon listening on a loopback {@code port} keeps the token its clients have to send.
+     */
+    public static Path tokenFile(int port) {
+        return Path.of(System.getProperty("user.home"), ".cache", "moddeobf", "daemon-" + port + ".token");
+    }
+
+    public Deobfuscator deobfuscator(String version, String side) throws IOException {
+        return registry.get(version, side);
+    }
+
+    public void serve(SocketAddress address) throws IOException {
+        boolean unix = address instanceof UnixDomainSocketAddress;
+        Path path = unix ? ((UnixDomainSocketAddress) address).getPath() : null;
+        int port = 0;
+        if (unix) {
+            Files.deleteIfExists(path);
+        }
+        try (ServerSocketChannel server = unix ? ServerSocketChannel.open(StandardProtocolFamily.UNIX) : ServerSocketChannel.open()) {
+            server.bind(address);
+            UserPrincipal owner = null;
+            byte[] token = null;
+            if (unix) {
+                restrict(path, "rw-------");
+                owner = Files.getOwner(path);
+            } else {
+                port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+                token = token(port);
+            }
+            synchronized (this) {
+                this.server = server;
+            }
+            Log.info("Listening on " + server.getLocalAddress());
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                } catch (AsynchronousCloseException e) {
+                    break;
+                }
+                UserPrincipal user = owner;
+                byte[] secret = token;
+                connections.execute(() -> handle(channel, user, secret));
+            }
+        } finally {
+            connections.shutdown();
+            if (unix) {
+                Files.deleteIfExists(path);
+            } else if (port != 0) {
+                Files.deleteIfExists(tokenFile(port));
+            }
+        }
+        Log.info("Daemon stopped");
+    }
+
+    /**
+     * Writes a fresh random token for {@code port} to a file only the owner can read and returns it.
+     */
+    private static byte[] token(int port) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        byte[] token = HexFormat.of().formatHex(random).getBytes(StandardCharsets.UTF_8);
+        Path file = tokenFile(port);
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        Files.createFile(file);
+        restrict(file, "rw-------");
+        Files.write(file, token);
+        return token;
+    }
+
+    private static void restrict(Path path, String permissions) throws IOException {
+        if (Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+        }
+    }
+
+    /**
+     * Whether a connection may submit jobs: a Unix-domain peer has to run as {@code owner} where the
+     * platform tells, a loopback peer has to send {@code token} first.
+     */
+    private static boolean authorized(SocketChannel channel, DataInputStream in, UserPrincipal owner, byte[] token) throws IOException {
+        if (token != null) {
+            return MessageDigest.isEqual(in.readUTF().getBytes(StandardCharsets.UTF_8), token);
+        }
+        try {
+            return channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user().equals(owner);
+        } catch (UnsupportedOperationException e) {
+            return true;
+        }
+    }
+
+    private void handle(SocketChannel channel, UserPrincipal owner, byte[] token) {
+        try (channel;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            if (!authorized(channel, in, owner, token)) {
+                Log.info("Refused a connection that failed authentication");
+                reply(out, false, "Not authorized");
+                return;
+            }
+            while (true) {
+                int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (magic != MAGIC) {
+                    reply(out, false, "Bad request");
+                    return;
+                }
+                byte operation = in.readByte();
+                if (operation == REMAP) {
+                    remap(in, out);
+                } else if (operation == STOP) {
+                    reply(out, true, "Stopping");
+                    synchronized (this) {
+                        server.close();
+                    }
+                    return;
+                } else {
+                    reply(out, false, "Unknown operation " + operation);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.info("Connection failed: " + e);
+        }
+    }
+
+    private void remap(DataInputStream in, DataOutputStream out) throws IOException {
+        String version = in.readUTF();
+        String side = in.readUTF();
+        File input = new File(in.readUTF());
+        String output = in.readUTF();
+        String decompileDir = in.readUTF();
+        long start = System.nanoTime();
+        try {
+            Map<String, byte[]> classes = decompileDir.isEmpty() ? null : new LinkedHashMap<>();
+            deobfuscator(version, side).fork().remap(input, output.isEmpty() ? null : new File(output), classes);
+            if (classes != null) {
+                String name = output.isEmpty() ? input.getName() : new File(output).getName();
+                File directory = new File(decompileDir);
+                ModDeobf.decompile(directory, new File(version + ".deobf.jar"), threads, engines, ioThreads, List.of(new IncrementalSource(directory, name, input, classes)));
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.info("Failed to remap " + input + ": " + e);
+            reply(out, false, String.valueOf(e));
+            return;
+        }
+        String message = "Remapped " + input.getName() + " in " + (System.nanoTime() - start) / 1_000_000 + " ms";
+        Log.info(message);
+        ModDeobf.report(profile);
+        reply(out, true, message);
+    }
+
+    private static void reply(DataOutputStream out, boolean success, String message) throws IOException {
+        out.writeBoolean(success);
+        out.writeUTF(message);
+        out.flush();
+    }
+}
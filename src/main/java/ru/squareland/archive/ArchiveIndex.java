@@ -0,0 +1,240 @@
+package ru.squareland.archive;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Zip archive read through a memory mapping of the whole file and its central directory. Entries are inflated
+ * straight from the mapping with pooled inflaters, so any number of threads can read at once, and their raw
+ * (still compressed) data can be copied to another archive without inflating and deflating it again.
+ * Archives too large for a single mapping are read through positional channel reads instead.
+ */
+public class ArchiveIndex implements Closeable {
+    static final int LOCAL_HEADER = 0x04034b50;
+    static final int CENTRAL_HEADER = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    static final int ZIP64_END_LOCATOR = 0x07064b50;
+    private static final Queue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Map<String, Entry> byName = new HashMap<>();
+
+    private ArchiveIndex(FileChannel channel, ByteBuffer mapped) {
+        this.channel = channel;
+        this.mapped = mapped;
+    }
+
+    public static ArchiveIndex open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer mapped = size <= Integer.MAX_VALUE ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+            ArchiveIndex index = new ArchiveIndex(channel, mapped);
+            index.readCentralDirectory(size);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readCentralDirectory(long size) throws IOException {
+        int tailLength = (int) Math.min(size, 0xFFFF + 22);
+        ByteBuffer tail = region(size - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - 22; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            throw new IOException("Not a zip archive");
+        }
+        int disk = tail.getShort(end + 4) & 0xFFFF;
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long directorySize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long directoryOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+            ByteBuffer locator = region(size - tailLength + end - 20, 20);
+            if (locator.getInt(0) != ZIP64_END_LOCATOR) {
+                throw new IOException("Missing Zip64 end of central directory locator");
+            }
+            ByteBuffer record = region(locator.getLong(8), 56);
+            if (record.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                throw new IOException("Corrupt Zip64 end of central directory");
+            }
+            disk = record.getInt(16);
+            count = record.getLong(32);
+            directorySize = record.getLong(40);
+            directoryOffset = record.getLong(48);
+        }
+        if (disk != 0) {
+            throw new IOException("Spanned archives are not supported");
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new IOException("Central directory too large");
+        }
+        ByteBuffer directory = region(directoryOffset, (int) directorySize);
+        for (int position = 0; position < directorySize; ) {
+            if (directory.getInt(position) != CENTRAL_HEADER) {
+                throw new IOException("Corrupt central directory at " + (directoryOffset + position));
+            }
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            int dosTime = directory.getInt(position + 12);
+            long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+            long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = directory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long offset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+            byte[] name = new byte[nameLength];
+            directory.get(position + 46, name);
+            for (int extra = position + 46 + nameLength, extraEnd = extra + extraLength; extra + 4 <= extraEnd; ) {
+                int id = directory.getShort(extra) & 0xFFFF;
+                int length = directory.getShort(extra + 2) & 0xFFFF;
+                if (id == 1) {
+                    int field = extra + 4;
+                    if (uncompressedSize == 0xFFFFFFFFL) {
+                        uncompressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == 0xFFFFFFFFL) {
+                        compressedSize = directory.getLong(field);
+                        field += 8;
+                    }
+                    if (offset == 0xFFFFFFFFL) {
+                        offset = directory.getLong(field);
+                    }
+                }
+                extra += 4 + length;
+            }
+            Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), flags, method, dosTime, crc, compressedSize, uncompressedSize, offset);
+            entries.add(entry);
+            byName.putIfAbsent(entry.name, entry);
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private ByteBuffer region(long position, int length) throws IOException {
+        if (mapped != null) {
+            if (position < 0 || position + length > mapped.capacity()) {
+                throw new EOFException();
+            }
+            return mapped.slice((int) position, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Every entry, in central directory order.
+     */
+    public List<Entry> entries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * The first entry called {@code name}, or null if there is none.
+     */
+    public Entry get(String name) {
+        return byName.get(name);
+    }
+
+    private ByteBuffer data(Entry entry) throws IOException {
+        if ((entry.flags & 1) != 0) {
+            throw new IOException("Entry " + entry.name + " is encrypted");
+        }
+        if (entry.compressedSize > Integer.MAX_VALUE || entry.size > Integer.MAX_VALUE) {
+            throw new IOException("Entry " + entry.name + " is too large");
+        }
+        ByteBuffer header = region(entry.offset, 30);
+        if (header.getInt(0) != LOCAL_HEADER) {
+            throw new IOException("Corrupt local header of " + entry.name);
+        }
+        long data = entry.offset + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+        return region(data, (int) entry.compressedSize);
+    }
+
+    /**
+     * Reads the compressed data of {@code entry}.
+     */
+    public byte[] raw(Entry entry) throws IOException {
+        ByteBuffer data = data(entry);
+        byte[] raw = new byte[data.remaining()];
+        data.get(raw);
+        return raw;
+    }
+
+    /**
+     * Reads and inflates the contents of {@code entry}. Safe to call from several threads at once.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        ByteBuffer data = data(entry);
+        if (entry.method == ZipEntry.STORED) {
+            byte[] contents = new byte[data.remaining()];
+            data.get(contents);
+            return contents;
+        }
+        if (entry.method != ZipEntry.DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method + " of " + entry.name);
+        }
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            inflater.setInput(data);
+            byte[] contents = new byte[(int) entry.size];
+            for (int length = 0; length < contents.length; ) {
+                int inflated = inflater.inflate(contents, length, contents.length - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated entry " + entry.name);
+                }
+                length += inflated;
+            }
+            return contents;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry " + entry.name, e);
+        } finally {
+            inflater.reset();
+            INFLATERS.offer(inflater);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @param dosTime MS-DOS time in the low and date in the high half
+     */
+    public record Entry(String name, int flags, int method, int dosTime, long crc, long compressedSize, long size, long offset) {
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
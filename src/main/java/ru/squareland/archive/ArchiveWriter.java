@@ -0,0 +1,156 @@
+package ru.squareland.archive;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a zip archive, compressing new entries as {@link Compression} says and copying entries of other
+ * archives as they are, without a round trip through the inflater and deflater. Switches to Zip64 end records
+ * when the archive outgrows the classic format.
+ */
+public class ArchiveWriter implements Closeable {
+    private static final int UTF8_NAMES = 0x0800;
+    /**
+     * MS-DOS time of 1980-01-01 00:00, the earliest a zip entry can carry.
+     */
+    static final int DOS_EPOCH = 1 << 21 | 1 << 16;
+
+    private final OutputStream out;
+    private final Deflater deflater;
+    private final boolean fixedTimes;
+    private final List<Central> directory = new ArrayList<>();
+    private final ByteBuffer header = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] compressed = new byte[64 * 1024];
+    private long position;
+
+    public ArchiveWriter(File file, Compression compression) throws IOException {
+        this(file, compression, false);
+    }
+
+    /**
+     * @param fixedTimes whether to stamp every entry, written or copied, with {@link #DOS_EPOCH} instead of its own
+     *                   time, so that archives of the same entries are identical byte for byte
+     */
+    public ArchiveWriter(File file, Compression compression, boolean fixedTimes) throws IOException {
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        this.deflater = compression != Compression.STORED ? new Deflater(compression.level(), true) : null;
+        this.fixedTimes = fixedTimes;
+    }
+
+    /**
+     * Adds an entry with the given contents and modification time in milliseconds.
+     */
+    public void write(String name, byte[] data, long time) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        int length = data.length;
+        byte[] body = data;
+        int method = ZipEntry.STORED;
+        if (deflater != null && length > 0) {
+            deflater.reset();
+            deflater.setInput(data);
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, size * 2);
+                }
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            if (size < length) {
+                body = compressed;
+                length = size;
+                method = ZipEntry.DEFLATED;
+            }
+        }
+        add(name, method, fixedTimes ? DOS_EPOCH : dosTime(time), crc.getValue(), length, data.length, body);
+    }
+
+    /**
+     * Copies {@code entry} of {@code source} with its data still compressed.
+     */
+    public void copy(ArchiveIndex source, ArchiveIndex.Entry entry) throws IOException {
+        byte[] raw = source.raw(entry);
+        add(entry.name(), entry.method(), fixedTimes ? DOS_EPOCH : entry.dosTime(), entry.crc(), raw.length, entry.size(), raw);
+    }
+
+    private void add(String name, int method, int dosTime, long crc, int compressedSize, long size, byte[] body) throws IOException {
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        Central central = new Central(encodedName, method, dosTime, crc, compressedSize, size, position);
+        directory.add(central);
+        header.clear();
+        header.putInt(ArchiveIndex.LOCAL_HEADER).putShort((short) 20).putShort((short) UTF8_NAMES).putShort((short) method)
+            .putInt(dosTime).putInt((int) crc).putInt(compressedSize).putInt((int) size)
+            .putShort((short) encodedName.length).putShort((short) 0);
+        out.write(header.array(), 0, header.position());
+        out.write(encodedName);
+        out.write(body, 0, compressedSize);
+        position += header.position() + encodedName.length + compressedSize;
+    }
+
+    static int dosTime(long time) {
+        LocalDateTime t = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        if (t.getYear() < 1980) {
+            return DOS_EPOCH;
+        }
+        return (t.getYear() - 1980) << 25 | t.getMonthValue() << 21 | t.getDayOfMonth() << 16
+            | t.getHour() << 11 | t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (out) {
+            long directoryOffset = position;
+            for (Central entry : directory) {
+                boolean zip64 = entry.offset >= 0xFFFFFFFFL;
+                header.clear();
+                header.putInt(ArchiveIndex.CENTRAL_HEADER).putShort((short) (zip64 ? 45 : 20)).putShort((short) (zip64 ? 45 : 20))
+                    .putShort((short) UTF8_NAMES).putShort((short) entry.method).putInt(entry.dosTime).putInt((int) entry.crc)
+                    .putInt(entry.compressedSize).putInt((int) entry.size).putShort((short) entry.name.length)
+                    .putShort((short) (zip64 ? 12 : 0)).putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0)
+                    .putInt(zip64 ? -1 : (int) entry.offset);
+                out.write(header.array(), 0, header.position());
+                out.write(entry.name);
+                position += header.position() + entry.name.length;
+                if (zip64) {
+                    header.clear();
+                    header.putShort((short) 1).putShort((short) 8).putLong(entry.offset);
+                    out.write(header.array(), 0, header.position());
+                    position += header.position();
+                }
+            }
+            long directorySize = position - directoryOffset;
+            int count = directory.size();
+            boolean zip64 = count >= 0xFFFF || directoryOffset >= 0xFFFFFFFFL || directorySize >= 0xFFFFFFFFL;
+            if (zip64) {
+                header.clear();
+                header.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                    .putLong(count).putLong(count).putLong(directorySize).putLong(directoryOffset);
+                header.putInt(0x07064b50).putInt(0).putLong(position).putInt(1);
+                out.write(header.array(), 0, header.position());
+            }
+            header.clear();
+            header.putInt(ArchiveIndex.END_OF_CENTRAL_DIRECTORY).putShort((short) 0).putShort((short) 0)
+                .putShort((short) (zip64 ? 0xFFFF : count)).putShort((short) (zip64 ? 0xFFFF : count))
+                .putInt(zip64 ? -1 : (int) directorySize).putInt(zip64 ? -1 : (int) directoryOffset).putShort((short) 0);
+            out.write(header.array(), 0, header.position());
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private record Central(byte[] name, int method, int dosTime, long crc, int compressedSize, long size, long offset) {}
+}
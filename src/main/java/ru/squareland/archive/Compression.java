@@ -0,0 +1,32 @@
+package ru.squareland.archive;
+
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * How entries written to an archive are compressed. Entries copied unchanged from another archive keep
+ * their original compression.
+ */
+public enum Compression {
+    STORED(Deflater.NO_COMPRESSION),
+    FAST(Deflater.BEST_SPEED),
+    DEFAULT(Deflater.DEFAULT_COMPRESSION),
+    MAX(Deflater.BEST_COMPRESSION);
+
+    private final int level;
+
+    Compression(int level) {
+        this.level = level;
+    }
+
+    /**
+     * The {@link Deflater} level, {@link Deflater#NO_COMPRESSION} for {@link #STORED}.
+     */
+    public int level() {
+        return level;
+    }
+
+    public static Compression parse(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
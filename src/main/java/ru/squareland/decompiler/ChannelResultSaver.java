@@ -0,0 +1,227 @@
+package ru.squareland.decompiler;
+
+import org.jetbrains.java.decompiler.main.DecompilerContext;
+import org.jetbrains.java.decompiler.main.extern.IFernflowerLogger.Severity;
+import org.jetbrains.java.decompiler.main.extern.IResultSaver;
+import org.jetbrains.java.decompiler.util.InterpreterUtil;
+import org.jetbrains.java.decompiler.util.ZipFileCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+/**
+ * Saves sources into a directory through {@link FileChannel}s. Sources are encoded to UTF-8 straight into pooled
+ * direct buffers, never copied into an intermediate byte array. With {@code ioThreads > 0} files are written on
+ * a dedicated executor, so the decompiler only waits on the disk once that executor's queue is full;
+ * {@link #close()} waits for the pending writes.
+ * <p>
+ * The decompiler closes its saver itself and only logs what {@link #close()} throws, so whoever ran it should
+ * close the saver again to learn whether every file was written.
+ */
+public class ChannelResultSaver implements IResultSaver {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Queue<Encoder> ENCODERS = new ConcurrentLinkedQueue<>();
+
+    private final Path root;
+    private final ThreadPoolExecutor io;
+    private final ZipFileCache openZips = new ZipFileCache();
+    private IOException failure;
+
+    public ChannelResultSaver(File root) {
+        this(root, 0);
+    }
+
+    public ChannelResultSaver(File root, int ioThreads) {
+        this.root = root.toPath();
+        if (ioThreads > 0) {
+            this.io = new ThreadPoolExecutor(ioThreads, ioThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(ioThreads * 64), r -> {
+                    Thread thread = new Thread(r, "decompiler-io");
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        } else {
+            this.io = null;
+        }
+    }
+
+    /**
+     * Writes {@code content} to {@code file} as UTF-8, replacing it.
+     */
+    public static void write(Path file, String content) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            encode(content, channel);
+        }
+    }
+
+    /**
+     * Encodes {@code content} as UTF-8 into {@code channel} through a pooled buffer.
+     */
+    public static void encode(CharSequence content, WritableByteChannel channel) throws IOException {
+        Encoder encoder = ENCODERS.poll();
+        if (encoder == null) {
+            encoder = new Encoder();
+        }
+        try {
+            CharsetEncoder utf8 = encoder.utf8.reset();
+            ByteBuffer buffer = encoder.buffer.clear();
+            CharBuffer chars = CharBuffer.wrap(content);
+            while (utf8.encode(chars, buffer, true).isOverflow()) {
+                drain(buffer, channel);
+            }
+            while (utf8.flush(buffer) == CoderResult.OVERFLOW) {
+                drain(buffer, channel);
+            }
+            drain(buffer, channel);
+        } finally {
+            ENCODERS.offer(encoder);
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void saveFolder(String path) {
+        createDirectories(root.resolve(path));
+    }
+
+    @Override
+    public void copyFile(String source, String path, String entryName) {
+        try {
+            InterpreterUtil.copyFile(new File(source), root.resolve(path).resolve(entryName).toFile());
+        } catch (IOException ex) {
+            DecompilerContext.getLogger().writeMessage("Cannot copy " + source + " to " + entryName, ex);
+            fail(new IOException("Cannot copy " + source + " to " + entryName, ex));
+        }
+    }
+
+    @Override
+    public void saveClassFile(String path, String qualifiedName, String entryName, String content, int[] mapping) {
+        save(root.resolve(path).resolve(entryName), content);
+    }
+
+    @Override
+    public void createArchive(String path, String archiveName, Manifest manifest) {
+    }
+
+    @Override
+    public void saveDirEntry(String path, String archiveName, String entryName) {
+        createDirectories(root.resolve(entryName));
+    }
+
+    @Override
+    public void copyEntry(String source, String path, String archiveName, String entryName) {
+        try {
+            ZipEntry entry = openZips.get(source).getEntry(entryName);
+            if (entry != null) {
+                try (InputStream in = openZips.get(source).getInputStream(entry)) {
+                    Files.copy(in, root.resolve(entryName), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (IOException ex) {
+            DecompilerContext.getLogger().writeMessage("Cannot copy entry " + entryName + " from " + source, ex);
+            fail(new IOException("Cannot copy entry " + entryName + " from " + source, ex));
+        }
+    }
+
+    @Override
+    public void saveClassEntry(String path, String archiveName, String qualifiedName, String entryName, String content) {
+        save(root.resolve(entryName), content);
+    }
+
+    @Override
+    public void closeArchive(String path, String archiveName) {
+    }
+
+    private void save(Path file, String content) {
+        if (content == null) {
+            DecompilerContext.getLogger().writeMessage("Attempted to write null class file to " + file, Severity.WARN);
+        } else if (io == null) {
+            try {
+                write(file, content);
+            } catch (IOException ex) {
+                DecompilerContext.getLogger().writeMessage("Cannot write class file " + file, ex);
+                fail(new IOException("Cannot write class file " + file, ex));
+            }
+        } else {
+            io.execute(() -> {
+                try {
+                    write(file, content);
+                } catch (IOException ex) {
+                    fail(new IOException("Cannot write class file " + file, ex));
+                }
+            });
+        }
+    }
+
+    private synchronized void fail(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        } else {
+            failure.addSuppressed(ex);
+        }
+    }
+
+    private static void createDirectories(Path directory) {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException ex) {
+            throw new RuntimeException("Cannot create directory " + directory, ex);
+        }
+    }
+
+    /**
+     * Waits for the pending writes and throws the first that failed. Closing again throws the same failure.
+     */
+    @Override
+    public void close() throws IOException {
+        openZips.close();
+        if (io != null) {
+            io.shutdown();
+            try {
+                io.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while writing sources", e);
+            }
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private static final class Encoder {
+        final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+}
@@ -3,7 +3,6 @@ package ru.squareland.decompiler;
 import org.jetbrains.java.decompiler.main.DecompilerContext;
 import org.jetbrains.java.decompiler.main.Fernflower;
 import org.jetbrains.java.decompiler.main.decompiler.ConsoleFileSaver;
-import org.jetbrains.java.decompiler.main.decompiler.DirectoryResultSaver;
 import org.jetbrains.java.decompiler.main.decompiler.SingleFileSaver;
 import org.jetbrains.java.decompiler.main.extern.IContextSource;
 import org.jetbrains.java.decompiler.main.extern.IFernflowerLogger;
@@ -13,7 +12,7 @@ import org.jetbrains.java.decompiler.util.InterpreterUtil;
 import org.jetbrains.java.decompiler.util.ZipFileCache;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -44,10 +43,22 @@ public class ConsoleDecompiler implements IResultSaver, AutoCloseable {
         this.engine = new Fernflower(saveType == SaveType.LEGACY_CONSOLEDECOMPILER ? this : saveType.getSaver().apply(destination), options, logger);
     }
 
+    public ConsoleDecompiler(File destination, Map<String, Object> options, IFernflowerLogger logger, IResultSaver saver) {
+        this.mapArchiveStreams = new HashMap<>();
+        this.mapArchiveEntries = new HashMap<>();
+        this.openZips = new ZipFileCache();
+        this.root = destination;
+        this.engine = new Fernflower(saver, options, logger);
+    }
+
     public void addSource(File source) {
         this.engine.addSource(source);
     }
 
+    public void addSource(IContextSource source) {
+        this.engine.addSource(source);
+    }
+
     public void addLibrary(File library) {
         this.engine.addLibrary(library);
     }
@@ -109,8 +120,8 @@ public class ConsoleDecompiler implements IResultSaver, AutoCloseable {
     public void saveClassFile(String path, String qualifiedName, String entryName, String content, int[] mapping) {
         File file = new File(this.getAbsolutePath(path), entryName);
         if (content != null) {
-            try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
-                out.write(content);
+            try {
+                ChannelResultSaver.write(file.toPath(), content);
             } catch (IOException ex) {
                 DecompilerContext.getLogger().writeMessage("Cannot write class file " + String.valueOf(file), ex);
             }
@@ -128,7 +139,7 @@ public class ConsoleDecompiler implements IResultSaver, AutoCloseable {
                 throw new IOException("Cannot create file " + String.valueOf(file));
             }
 
-            FileOutputStream fileStream = new FileOutputStream(file);
+            OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
             ZipOutputStream zipStream = manifest != null ? new JarOutputStream(fileStream, manifest) : new ZipOutputStream(fileStream);
             this.mapArchiveStreams.put(file.getPath(), zipStream);
         } catch (IOException ex) {
@@ -182,7 +193,7 @@ public class ConsoleDecompiler implements IResultSaver, AutoCloseable {
 
                 out.putNextEntry(entry);
                 if (content != null) {
-                    out.write(content.getBytes(StandardCharsets.UTF_8));
+                    ChannelResultSaver.encode(content, Channels.newChannel(out));
                 }
             } catch (IOException ex) {
                 String message = "Cannot write entry " + entryName + " to " + file;
@@ -229,7 +240,7 @@ public class ConsoleDecompiler implements IResultSaver, AutoCloseable {
 
     public enum SaveType {
         LEGACY_CONSOLEDECOMPILER(null),
-        FOLDER(DirectoryResultSaver::new),
+        FOLDER(ChannelResultSaver::new),
         FILE(SingleFileSaver::new),
         CONSOLE(ConsoleFileSaver::new);
 
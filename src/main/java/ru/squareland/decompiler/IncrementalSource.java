@@ -0,0 +1,183 @@
+package ru.squareland.decompiler;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A remapped jar decompiled incrementally against a manifest kept in {@code <decompileDir>/.manifests/<name>}.
+ * <p>
+ * Classes are grouped by top-level class (with their nested classes) and every group is hashed. Only groups
+ * that are new, changed, or whose sources are gone are decompiled; the unchanged ones are handed to the
+ * decompiler as a library, so the decompiled classes still see them. Sources of removed groups are deleted.
+ * The manifest maps each group to its hash and the source files emitted for it. Groups are named after the
+ * classes as their bytecode names them, which is what the decompiler reports and which is not the entry name
+ * of a class the remapper renamed.
+ */
+public class IncrementalSource {
+    private final File root;
+    private final File manifest;
+    private final String name;
+    private final File resources;
+    private final Map<String, byte[]> classes;
+    private final Map<String, String> entries = new HashMap<>();
+    private final Map<String, Record> records = new TreeMap<>();
+    private final List<Map<String, byte[]>> stale = new ArrayList<>();
+    private final Map<String, byte[]> unchanged = new LinkedHashMap<>();
+
+    public IncrementalSource(File decompileDir, String name, File resources, Map<String, byte[]> classes) throws IOException {
+        this.root = decompileDir;
+        this.manifest = new File(new File(decompileDir, ".manifests"), name);
+        this.name = name;
+        this.resources = resources;
+        this.classes = classes;
+        for (Map.Entry<String, byte[]> e : classes.entrySet()) {
+            entries.put(new ClassReader(e.getValue()).getClassName(), e.getKey());
+        }
+        if (manifest.isFile()) {
+            for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if (parts.length >= 2) {
+                    records.put(parts[0], new Record(parts[1], new ArrayList<>(Arrays.asList(parts).subList(2, parts.length))));
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes stale sources and finds the groups that need decompiling. Returns false when every group is up to date.
+     */
+    public boolean scan() throws IOException {
+        Map<String, List<String>> groups = new TreeMap<>();
+        for (String className : entries.keySet()) {
+            groups.computeIfAbsent(topLevel(className), k -> new ArrayList<>()).add(className);
+        }
+        boolean removed = false;
+        for (Iterator<Map.Entry<String, Record>> iterator = records.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<String, Record> e = iterator.next();
+            if (!groups.containsKey(e.getKey())) {
+                delete(e.getValue());
+                iterator.remove();
+                removed = true;
+            }
+        }
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            String hash = hash(group.getValue());
+            Record record = records.get(group.getKey());
+            boolean current = record != null && record.hash.equals(hash) && !record.files.isEmpty()
+                && record.files.stream().allMatch(file -> new File(root, file).isFile());
+            Map<String, byte[]> target = current ? unchanged : new LinkedHashMap<>();
+            for (String className : group.getValue()) {
+                String entry = entries.get(className);
+                target.put(entry, classes.get(entry));
+            }
+            if (!current) {
+                if (record != null) {
+                    delete(record);
+                }
+                stale.add(target);
+                records.put(group.getKey(), new Record(hash, new ArrayList<>()));
+            }
+        }
+        if (stale.isEmpty() && removed) {
+            save();
+        }
+        return !stale.isEmpty();
+    }
+
+    /**
+     * Adds the {@code part}-th of {@code parts} shares of the groups found by {@link #scan()} to {@code decompiler}
+     * as a source, and everything else as a library so that the share still sees the rest of the jar. Shares are
+     * dealt group by group in name order, and the first one also carries the jar's resources.
+     */
+    public void addTo(ConsoleDecompiler decompiler, int part, int parts) {
+        Map<String, byte[]> share = new LinkedHashMap<>();
+        Map<String, byte[]> rest = new LinkedHashMap<>(unchanged);
+        for (int i = 0; i < stale.size(); i++) {
+            (i % parts == part ? share : rest).putAll(stale.get(i));
+        }
+        if (!share.isEmpty()) {
+            decompiler.addSource(new MemoryContextSource(name, part == 0 ? resources : null, share, (qualifiedName, fileName) -> {
+                Record record = qualifiedName != null ? records.get(topLevel(qualifiedName)) : null;
+                if (record != null) {
+                    synchronized (record.files) {
+                        record.files.add(fileName);
+                    }
+                }
+            }));
+        }
+        if (!rest.isEmpty()) {
+            decompiler.addLibrary(new MemoryContextSource(name + " (unchanged)", null, rest));
+        }
+    }
+
+    /**
+     * Writes the manifest once the decompiler has run.
+     */
+    public void save() throws IOException {
+        File directory = manifest.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File temp = new File(manifest.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Record> e : records.entrySet()) {
+                out.write(e.getKey());
+                out.write('\t');
+                out.write(e.getValue().hash);
+                for (String file : e.getValue().files) {
+                    out.write('\t');
+                    out.write(file);
+                }
+                out.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Number of top-level classes {@link #scan()} found new or changed.
+     */
+    public int changed() {
+        return stale.size();
+    }
+
+    private String topLevel(String className) {
+        for (int dollar = className.indexOf('$', className.lastIndexOf('/') + 1); dollar > 0; dollar = className.indexOf('$', dollar + 1)) {
+            String outer = className.substring(0, dollar);
+            if (entries.containsKey(outer)) {
+                return outer;
+            }
+        }
+        return className;
+    }
+
+    private String hash(List<String> group) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        for (String className : new TreeSet<>(group)) {
+            digest.update(className.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(classes.get(entries.get(className)));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private void delete(Record record) throws IOException {
+        for (String file : record.files) {
+            Files.deleteIfExists(new File(root, file).toPath());
+        }
+    }
+
+    private record Record(String hash, List<String> files) {}
+}
@@ -0,0 +1,202 @@
+package ru.squareland.decompiler;
+
+import org.jetbrains.java.decompiler.main.extern.IContextSource;
+import org.jetbrains.java.decompiler.main.extern.IResultSaver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Decompiler source serving remapped classes straight from memory. Everything else (resources, directories,
+ * the manifest) is read from {@code resources}, the jar the classes were remapped from, since remapping copies
+ * those entries unchanged. Output goes to the saver as if the remapped jar itself had been added. That jar is
+ * opened once and closed with the source, which the decompiler does when it clears its context.
+ */
+public class MemoryContextSource implements IContextSource, AutoCloseable {
+    private final String name;
+    private final File resources;
+    private final Map<String, byte[]> classes;
+    private final BiConsumer<String, String> emitted;
+    private ZipFile zip;
+
+    /**
+     * @param name      archive name reported to the saver, usually the name of the remapped jar
+     * @param resources jar holding the non-class entries, or null if there are none
+     * @param classes   remapped classes by internal name
+     */
+    public MemoryContextSource(String name, File resources, Map<String, byte[]> classes) {
+        this(name, resources, classes, (qualifiedName, fileName) -> {});
+    }
+
+    /**
+     * @param emitted told the qualified name and the file name of every decompiled top-level class
+     */
+    public MemoryContextSource(String name, File resources, Map<String, byte[]> classes, BiConsumer<String, String> emitted) {
+        this.name = name;
+        this.resources = resources;
+        this.classes = classes;
+        this.emitted = emitted;
+    }
+
+    /**
+     * Reads the classes of a jar by internal name, in entry order.
+     */
+    public static Map<String, byte[]> classes(File jar) throws IOException {
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(jar)) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (path.endsWith(CLASS_SUFFIX)) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        classes.put(path.substring(0, path.length() - CLASS_SUFFIX.length()), in.readAllBytes());
+                    }
+                }
+            }
+        }
+        return classes;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Entries getEntries() {
+        List<Entry> classEntries = new ArrayList<>(classes.size());
+        Set<String> directories = new LinkedHashSet<>();
+        List<Entry> others = new ArrayList<>();
+        for (String className : classes.keySet()) {
+            addDirectories(className + CLASS_SUFFIX, directories);
+            classEntries.add(Entry.parse(className));
+        }
+        if (resources == null) {
+            return new Entries(classEntries, List.copyOf(directories), others, List.of());
+        }
+        try {
+            Enumeration<? extends ZipEntry> entries = zip().entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String path = entry.getName();
+                if (path.endsWith(CLASS_SUFFIX)) {
+                    continue;
+                }
+                addDirectories(path, directories);
+                if (entry.isDirectory()) {
+                    directories.add(path);
+                } else {
+                    others.add(Entry.parse(path));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot list " + resources, e);
+        }
+        return new Entries(classEntries, List.copyOf(directories), others, List.of());
+    }
+
+    private static void addDirectories(String path, Set<String> directories) {
+        for (int slash = path.indexOf('/'); slash != -1; slash = path.indexOf('/', slash + 1)) {
+            directories.add(path.substring(0, slash));
+        }
+    }
+
+    @Override
+    public boolean hasClass(String className) {
+        return classes.containsKey(className);
+    }
+
+    @Override
+    public byte[] getClassBytes(String className) {
+        return classes.get(className);
+    }
+
+    @Override
+    public InputStream getInputStream(String resource) throws IOException {
+        if (resource.endsWith(CLASS_SUFFIX)) {
+            byte[] code = classes.get(resource.substring(0, resource.length() - CLASS_SUFFIX.length()));
+            if (code != null) {
+                return new ByteArrayInputStream(code);
+            }
+        }
+        if (resources == null) {
+            return null;
+        }
+        ZipFile zip = zip();
+        ZipEntry entry = zip.getEntry(resource);
+        if (entry == null) {
+            return null;
+        }
+        try (InputStream in = zip.getInputStream(entry)) {
+            return new ByteArrayInputStream(in.readAllBytes());
+        }
+    }
+
+    private synchronized ZipFile zip() throws IOException {
+        if (zip == null) {
+            zip = new ZipFile(resources);
+        }
+        return zip;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (zip != null) {
+            zip.close();
+            zip = null;
+        }
+    }
+
+    @Override
+    public IOutputSink createOutputSink(IResultSaver saver) {
+        return new IOutputSink() {
+            @Override
+            public void begin() {
+                Manifest manifest = null;
+                if (resources != null) {
+                    try {
+                        ZipEntry entry = zip().getEntry(JarFile.MANIFEST_NAME);
+                        if (entry != null) {
+                            try (InputStream in = zip().getInputStream(entry)) {
+                                manifest = new Manifest(in);
+                            }
+                        }
+                    } catch (IOException ignored) {
+                    }
+                }
+                saver.createArchive("", name, manifest);
+            }
+
+            @Override
+            public void acceptClass(String qualifiedName, String fileName, String content, int[] mapping) {
+                saver.saveClassEntry("", name, qualifiedName, fileName, content, mapping);
+                emitted.accept(qualifiedName, fileName);
+            }
+
+            @Override
+            public void acceptDirectory(String directory) {
+                saver.saveDirEntry("", name, directory);
+            }
+
+            @Override
+            public void acceptOther(String path) {
+                saver.copyEntry(resources.getAbsolutePath(), "", name, path);
+            }
+
+            @Override
+            public void close() {
+                saver.closeArchive("", name);
+            }
+        };
+    }
+}
@@ -0,0 +1,398 @@
+package ru.squareland.mapper;
+
+import ru.squareland.ClassMapping;
+import ru.squareland.Metrics;
+
+import java.io.*;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Binary form of a mapping set (srg tables plus the methods/fields csv), read through a memory-mapped file.
+ * <p>
+ * Layout: header, string table (offsets + UTF-8 blob, every distinct string stored once), then the
+ * package, class, field, method and csv tables as fixed-size int records referencing the string table.
+ * Classes are sorted by obfuscated name and csv records by id.
+ * <p>
+ * The srg tables are decoded once into the {@link ClassMapping}s of a mapper, since linking adds inherited
+ * members to them. The csv tables are binary searched in place, so the file stays mapped for as long as a
+ * mapper built from it is reachable.
+ */
+public class CompiledMappings {
+    private static final int MAGIC = 0x4D444D50;
+    /**
+     * Bump whenever the layout changes. Other changes to the code writing or reading the format are caught by
+     * {@link #build()}.
+     */
+    private static final int FORMAT = 2;
+    private static final int DIGEST_LENGTH = 32;
+    private static String build;
+
+    private final MappedByteBuffer buffer;
+    private final String[] strings;
+    private final int blob;
+    private final int packages;
+    private final int classes;
+    private final int fields;
+    private final int methods;
+    private final int csvMethods;
+    private final int csvFields;
+    private final byte[] digest;
+    private final Interner interner;
+
+    private CompiledMappings(MappedByteBuffer buffer, Interner interner) throws IOException {
+        this.buffer = buffer;
+        this.interner = interner;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new IOException("Not a compiled mapping file");
+        }
+        this.digest = new byte[DIGEST_LENGTH];
+        buffer.get(8, digest);
+        int position = 8 + DIGEST_LENGTH;
+        int count = buffer.getInt(position);
+        this.strings = new String[count];
+        int offsets = position + 4;
+        this.blob = offsets + (count + 1) * 4;
+        position = blob + buffer.getInt(offsets + count * 4);
+        this.packages = position;
+        position = skip(position, 2);
+        this.classes = position;
+        position = skip(position, 2);
+        this.fields = position;
+        position = skip(position, 3);
+        this.methods = position;
+        position = skip(position, 5);
+        this.csvMethods = position;
+        position = skip(position, 2);
+        this.csvFields = position;
+    }
+
+    private int skip(int table, int width) {
+        return table + 4 + buffer.getInt(table) * width * 4;
+    }
+
+    public static CompiledMappings load(String version, String side, File file) throws IOException {
+        return load(version, side, file, null);
+    }
+
+    /**
+     * Loads the mapping set, compiling it first if {@code file} is missing or stale. Decoded strings go
+     * through {@code interner} when one is given.
+     * <p>
+     * A file is current if it was compiled by the same build of the mapping code from resources of the same
+     * sizes and modification times; only its header is read to tell, and a stale file is never mapped.
+     */
+    public static CompiledMappings load(String version, String side, File file, Interner interner) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LOAD_MAPPINGS);
+        try {
+            byte[] digest = digest(version, side);
+            if (!Arrays.equals(header(file), digest)) {
+                write(file, version, side, digest);
+            }
+            return open(file, interner);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Returns the digest stored in the header of {@code file}, or null if it is missing or not a compiled mapping file.
+     */
+    private static byte[] header(File file) {
+        ByteBuffer header = ByteBuffer.allocate(8 + DIGEST_LENGTH);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+            return null;
+        }
+        byte[] digest = new byte[DIGEST_LENGTH];
+        header.get(8, digest);
+        return digest;
+    }
+
+    public static CompiledMappings open(File file) throws IOException {
+        return open(file, null);
+    }
+
+    public static CompiledMappings open(File file, Interner interner) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new CompiledMappings(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), interner);
+        }
+    }
+
+    public static void write(File file, String version, String side) throws IOException {
+        write(file, version, side, digest(version, side));
+    }
+
+    private static void write(File file, String version, String side, byte[] digest) throws IOException {
+        Notch2SrgMapper srg = new Notch2SrgMapper(version, side);
+        Srg2CsvMapper csv = new Srg2CsvMapper(version);
+
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        intern(strings, version);
+        intern(strings, side);
+        List<int[]> packages = new ArrayList<>();
+        for (Map.Entry<String, String> e : new TreeMap<>(srg.packages).entrySet()) {
+            packages.add(new int[]{intern(strings, e.getKey()), intern(strings, e.getValue())});
+        }
+        List<int[]> classes = new ArrayList<>();
+        List<int[]> fields = new ArrayList<>();
+        List<int[]> methods = new ArrayList<>();
+        for (ClassMapping mapping : new TreeMap<>(srg.obfuscatedClasses).values()) {
+            int index = classes.size();
+            classes.add(new int[]{intern(strings, mapping.obfuscatedName), intern(strings, mapping.name)});
+            for (ClassMapping.Member field : mapping.fields.obfuscatedFields.values()) {
+                fields.add(new int[]{index, intern(strings, field.obfuscatedName()), intern(strings, field.name())});
+            }
+            for (ClassMapping.Member method : mapping.methods.obfuscatedMethods.values()) {
+                methods.add(new int[]{index, intern(strings, method.obfuscatedName()), intern(strings, method.obfuscatedDesc()), intern(strings, method.name()), intern(strings, method.desc())});
+            }
+        }
+        List<int[]> csvMethods = new ArrayList<>();
+        csv.methods.forEachSorted((id, name) -> csvMethods.add(new int[]{id, intern(strings, name)}));
+        List<int[]> csvFields = new ArrayList<>();
+        csv.fields.forEachSorted((id, name) -> csvFields.add(new int[]{id, intern(strings, name)}));
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.write(digest);
+            out.writeInt(strings.size());
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            int offset = 0;
+            for (String s : strings.keySet()) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                encoded.add(bytes);
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+            for (List<int[]> table : List.of(packages, classes, fields, methods, csvMethods, csvFields)) {
+                out.writeInt(table.size());
+                for (int[] record : table) {
+                    for (int value : record) {
+                        out.writeInt(value);
+                    }
+                }
+            }
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    private static int intern(Map<String, Integer> strings, String value) {
+        return strings.computeIfAbsent(value, s -> strings.size());
+    }
+
+    /**
+     * Digest of the build and of the size and modification time of every resource a set is compiled from,
+     * which only takes the resource metadata rather than reading the resources.
+     */
+    private static byte[] digest(String version, String side) throws IOException {
+        StringBuilder stamp = new StringBuilder().append(FORMAT).append(' ').append(build()).append(' ').append(version).append(' ').append(side);
+        for (String resource : List.of(side + ".srg", "methods.csv", "fields.csv")) {
+            URL url = CompiledMappings.class.getResource("/mappings/" + version + "/" + resource);
+            if (url == null) {
+                throw new FileNotFoundException("Missing mapping resource " + version + "/" + resource);
+            }
+            URLConnection connection = url.openConnection();
+            stamp.append(' ').append(resource).append(' ').append(connection.getContentLengthLong()).append(' ').append(connection.getLastModified());
+            connection.getInputStream().close();
+        }
+        return sha256().digest(stamp.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Identifies the mapping code: the implementation version of the jar, when it has one, and a digest of the
+     * classes that parse the resources and write and read the compiled form. Since a snapshot keeps its version
+     * across changes, the digest is what makes sets compiled by other code stale.
+     */
+    private static synchronized String build() throws IOException {
+        if (build == null) {
+            MessageDigest digest = sha256();
+            for (Class<?> type : List.of(CompiledMappings.class, Notch2SrgMapper.class, Srg2CsvMapper.class, IdTable.class, ClassMapping.class)) {
+                List<Class<?>> classes = new ArrayList<>(List.of(type.getDeclaredClasses()));
+                classes.add(0, type);
+                for (Class<?> c : classes) {
+                    String resource = "/" + c.getName().replace('.', '/') + ".class";
+                    try (InputStream in = CompiledMappings.class.getResourceAsStream(resource)) {
+                        if (in == null) {
+                            throw new FileNotFoundException("Missing class file " + resource);
+                        }
+                        digest.update(in.readAllBytes());
+                    }
+                }
+            }
+            build = CompiledMappings.class.getPackage().getImplementationVersion() + " " + HexFormat.of().formatHex(digest.digest());
+        }
+        return build;
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public String version() {
+        return string(0);
+    }
+
+    public String side() {
+        return string(1);
+    }
+
+    /**
+     * Identifies the build and resources this set was compiled from.
+     */
+    public byte[] digest() {
+        return digest.clone();
+    }
+
+    String string(int index) {
+        String s = strings[index];
+        if (s == null) {
+            int offsets = blob - (strings.length + 1) * 4;
+            int start = buffer.getInt(offsets + index * 4);
+            int end = buffer.getInt(offsets + index * 4 + 4);
+            byte[] bytes = new byte[end - start];
+            buffer.get(blob + start, bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            if (interner != null) {
+                s = interner.intern(s);
+            }
+            strings[index] = s;
+        }
+        return s;
+    }
+
+    /**
+     * Rough heap footprint, in bytes, of the mapper tables built from this set: string headers and text,
+     * a class mapping with its member tables per class, a member record and two table slots per member.
+     * The csv tables stay in the mapped file and only add the strings looked up through them.
+     */
+    public long footprint() {
+        long text = buffer.getInt(blob - 4);
+        return strings.length * 64L + text + count(classes) * 512L + (count(fields) + count(methods)) * 256L;
+    }
+
+    private int count(int table) {
+        return buffer.getInt(table);
+    }
+
+    private int value(int table, int width, int record, int column) {
+        return buffer.getInt(table + 4 + (record * width + column) * 4);
+    }
+
+    void forEachPackage(PairConsumer consumer) {
+        for (int i = 0; i < count(packages); i++) {
+            consumer.accept(string(value(packages, 2, i, 0)), string(value(packages, 2, i, 1)));
+        }
+    }
+
+    void forEachClass(PairConsumer consumer) {
+        for (int i = 0; i < count(classes); i++) {
+            consumer.accept(string(value(classes, 2, i, 0)), string(value(classes, 2, i, 1)));
+        }
+    }
+
+    void forEachField(FieldConsumer consumer) {
+        for (int i = 0; i < count(fields); i++) {
+            String owner = string(value(classes, 2, value(fields, 3, i, 0), 0));
+            consumer.accept(owner, string(value(fields, 3, i, 1)), string(value(fields, 3, i, 2)));
+        }
+    }
+
+    void forEachMethod(MethodConsumer consumer) {
+        for (int i = 0; i < count(methods); i++) {
+            String owner = string(value(classes, 2, value(methods, 5, i, 0), 0));
+            consumer.accept(owner, string(value(methods, 5, i, 1)), string(value(methods, 5, i, 2)), string(value(methods, 5, i, 3)), string(value(methods, 5, i, 4)));
+        }
+    }
+
+    IdNames csvMethods() {
+        return new CsvTable(csvMethods);
+    }
+
+    IdNames csvFields() {
+        return new CsvTable(csvFields);
+    }
+
+    /**
+     * Csv table of the mapped file, records sorted by id.
+     */
+    private final class CsvTable implements IdNames {
+        private final int table;
+
+        private CsvTable(int table) {
+            this.table = table;
+        }
+
+        @Override
+        public String get(int id, String fallback) {
+            int low = 0;
+            int high = count(table) - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int key = value(table, 2, middle, 0);
+                if (key < id) {
+                    low = middle + 1;
+                } else if (key > id) {
+                    high = middle - 1;
+                } else {
+                    return string(value(table, 2, middle, 1));
+                }
+            }
+            return fallback;
+        }
+
+        @Override
+        public void forEachSorted(IdConsumer consumer) {
+            for (int i = 0; i < count(table); i++) {
+                consumer.accept(value(table, 2, i, 0), string(value(table, 2, i, 1)));
+            }
+        }
+    }
+
+    interface PairConsumer {
+        void accept(String obfuscatedName, String name);
+    }
+
+    interface FieldConsumer {
+        void accept(String obfuscatedClass, String obfuscatedName, String name);
+    }
+
+    interface MethodConsumer {
+        void accept(String obfuscatedClass, String obfuscatedName, String obfuscatedDesc, String name, String desc);
+    }
+
+    interface IdConsumer {
+        void accept(int id, String name);
+    }
+}
@@ -0,0 +1,13 @@
+package ru.squareland.mapper;
+
+/**
+ * Read-only table from srg ids to csv names.
+ */
+interface IdNames {
+    String get(int id, String fallback);
+
+    /**
+     * Passes every id with its name to {@code consumer} in ascending id order.
+     */
+    void forEachSorted(CompiledMappings.IdConsumer consumer);
+}
@@ -0,0 +1,82 @@
+package ru.squareland.mapper;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing table from non-negative srg ids to names. Filled once while a mapper is
+ * constructed and read-only afterwards, so concurrent lookups need no locking.
+ */
+final class IdTable implements IdNames {
+    private int[] ids;
+    private String[] names;
+    private int size;
+
+    IdTable() {
+        this.ids = new int[1024];
+        this.names = new String[1024];
+    }
+
+    void put(int id, String name) {
+        if ((size + 1) * 2 > ids.length) {
+            resize(ids.length * 2);
+        }
+        int slot = slot(id, ids.length);
+        while (names[slot] != null && ids[slot] != id) {
+            slot = (slot + 1) & (ids.length - 1);
+        }
+        if (names[slot] == null) {
+            size++;
+        }
+        ids[slot] = id;
+        names[slot] = name;
+    }
+
+    @Override
+    public String get(int id, String fallback) {
+        int slot = slot(id, ids.length);
+        String name;
+        while ((name = names[slot]) != null) {
+            if (ids[slot] == id) {
+                return name;
+            }
+            slot = (slot + 1) & (ids.length - 1);
+        }
+        return fallback;
+    }
+
+    int size() {
+        return size;
+    }
+
+    @Override
+    public void forEachSorted(CompiledMappings.IdConsumer consumer) {
+        int[] sorted = new int[size];
+        int count = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (names[i] != null) {
+                sorted[count++] = ids[i];
+            }
+        }
+        Arrays.sort(sorted);
+        for (int id : sorted) {
+            consumer.accept(id, get(id, null));
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldIds = ids;
+        String[] oldNames = names;
+        ids = new int[capacity];
+        names = new String[capacity];
+        size = 0;
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldNames[i] != null) {
+                put(oldIds[i], oldNames[i]);
+            }
+        }
+    }
+
+    private static int slot(int id, int capacity) {
+        return (id * 0x9E3779B9 >>> 7) & (capacity - 1);
+    }
+}
@@ -0,0 +1,23 @@
+package ru.squareland.mapper;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Weak string pool shared by mapping sets of different versions, which mostly repeat the same class, field
+ * and method names. Strings only held by the pool can still be collected once their mapping sets are evicted.
+ */
+public final class Interner {
+    private final Map<String, WeakReference<String>> strings = new WeakHashMap<>();
+
+    public synchronized String intern(String value) {
+        WeakReference<String> reference = strings.get(value);
+        String interned = reference != null ? reference.get() : null;
+        if (interned == null) {
+            strings.put(value, new WeakReference<>(value));
+            interned = value;
+        }
+        return interned;
+    }
+}
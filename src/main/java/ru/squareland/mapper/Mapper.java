@@ -1,20 +1,39 @@
 package ru.squareland.mapper;
 
-import org.objectweb.asm.tree.ClassNode;
-import ru.squareland.Deobfuscator;
+import org.objectweb.asm.commons.Remapper;
+import ru.squareland.ClassHierarchy;
 
-import java.io.File;
-import java.io.IOException;
-import java.util.HashSet;
+public abstract class Mapper extends Remapper {
+    public abstract void link(ClassHierarchy hierarchy);
 
-public abstract class Mapper {
-    protected Deobfuscator deobfuscator;
+    /**
+     * Returns a mapper for a single job that sees everything linked into this one so far, but keeps
+     * whatever is linked into it afterwards to itself. Stateless mappers return themselves.
+     */
+    public Mapper fork() {
+        return this;
+    }
 
-    public abstract boolean process(ClassNode node, HashSet<String> skip);
+    /**
+     * Whether remapping may change a class holding {@code constant} among its UTF-8 constants: names,
+     * descriptors and signatures. Classes none of whose constants affect any mapper are passed through untouched.
+     * Mappers that cannot tell return true.
+     */
+    public boolean affects(String constant) {
+        return true;
+    }
 
-    public abstract void loadRelations(File file) throws IOException;
+    /**
+     * Like {@link #affects} for the internal name (or array descriptor) of a class constant.
+     */
+    public boolean affectsClass(String name) {
+        return true;
+    }
 
-    public void setDeobfuscator(Deobfuscator deobfuscator) {
-        this.deobfuscator = deobfuscator;
+    /**
+     * Describes the settings that change how this mapper maps names, for keys of cached remapped classes.
+     */
+    public String fingerprint() {
+        return "";
     }
 }
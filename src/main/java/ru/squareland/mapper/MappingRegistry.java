@@ -0,0 +1,119 @@
+package ru.squareland.mapper;
+
+import ru.squareland.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Mapping sets of several game versions, loaded on first use and kept in least-recently-used order.
+ * Strings are interned across versions, and once the estimated footprint of the loaded sets exceeds the
+ * budget, the least recently used ones are dropped (the one just requested always stays). The footprint is
+ * estimated from the record counts of each set, not measured, so the budget is only approximate.
+ *
+ * @param <T> what is built from a mapping set, such as a mapper or a deobfuscator linked against the game
+ */
+public class MappingRegistry<T> {
+    private final File directory;
+    private final long budget;
+    private final Loader<T> loader;
+    private final Interner interner = new Interner();
+    private final Map<String, Entry<T>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<T>> loading = new HashMap<>();
+    private long footprint;
+
+    /**
+     * @param directory where compiled mapping files ({@code <version>.<side>.mappings}) are kept
+     * @param budget    approximate heap bytes the loaded sets may take together, see {@link CompiledMappings#footprint()}
+     */
+    public MappingRegistry(File directory, long budget, Loader<T> loader) {
+        this.directory = directory;
+        this.budget = budget;
+        this.loader = loader;
+    }
+
+    /**
+     * Returns the value built for a version and side, loading it first if needed. Loading happens outside the
+     * registry lock, so other versions stay available meanwhile; callers asking for the same version while it
+     * loads wait for that load instead of starting their own.
+     */
+    public T get(String version, String side) throws IOException {
+        String key = version + "/" + side;
+        CompletableFuture<T> loaded = null;
+        CompletableFuture<T> pending;
+        synchronized (this) {
+            Entry<T> entry = entries.get(key);
+            if (entry != null) {
+                return entry.value;
+            }
+            pending = loading.get(key);
+            if (pending == null) {
+                loaded = new CompletableFuture<>();
+                loading.put(key, loaded);
+            }
+        }
+        if (loaded == null) {
+            return await(pending);
+        }
+        try {
+            long start = System.nanoTime();
+            CompiledMappings mappings = CompiledMappings.load(version, side, new File(directory, version + "." + side + ".mappings"), interner);
+            Entry<T> entry = new Entry<>(loader.load(mappings), mappings.footprint());
+            synchronized (this) {
+                loading.remove(key);
+                entries.put(key, entry);
+                footprint += entry.footprint;
+                evict();
+            }
+            Log.info("Loaded " + key + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            loaded.complete(entry.value);
+            return entry.value;
+        } catch (IOException | RuntimeException | Error e) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            loaded.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private static <T> T await(CompletableFuture<T> pending) throws IOException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw new IOException(io.getMessage(), io);
+            }
+            if (e.getCause() instanceof RuntimeException re) {
+                throw re;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry<T>>> iterator = entries.entrySet().iterator();
+        while (footprint > budget && entries.size() > 1) {
+            Map.Entry<String, Entry<T>> eldest = iterator.next();
+            footprint -= eldest.getValue().footprint;
+            iterator.remove();
+            Log.info("Evicted " + eldest.getKey());
+        }
+    }
+
+    public interface Loader<T> {
+        T load(CompiledMappings mappings) throws IOException;
+    }
+
+    private record Entry<T>(T value, long footprint) {}
+}
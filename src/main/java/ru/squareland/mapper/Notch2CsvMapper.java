@@ -0,0 +1,53 @@
+package ru.squareland.mapper;
+
+import ru.squareland.ClassMapping;
+
+/**
+ * Single-pass replacement for {@code Notch2SrgMapper} followed by {@code Srg2CsvMapper}: obfuscated members
+ * map straight to csv names through tables composed at load time, and only names the srg tables do not
+ * cover (such as srg names already present in mods) fall back to the csv lookup.
+ */
+public class Notch2CsvMapper extends Notch2SrgMapper {
+    private final Srg2CsvMapper csv;
+
+    public Notch2CsvMapper(CompiledMappings mappings) {
+        this(mappings, new Srg2CsvMapper(mappings));
+    }
+
+    private Notch2CsvMapper(CompiledMappings mappings, Srg2CsvMapper csv) {
+        super(mappings, csv);
+        this.csv = csv;
+    }
+
+    private Notch2CsvMapper(Notch2CsvMapper shared) {
+        super(shared);
+        this.csv = shared.csv;
+    }
+
+    @Override
+    public Notch2CsvMapper fork() {
+        return new Notch2CsvMapper(this);
+    }
+
+    @Override
+    public String mapMethodName(String owner, String name, String descriptor) {
+        ClassMapping.Member method = findMethod(owner, name, descriptor);
+        return method != null ? method.name() : csv.mapMethodName(name);
+    }
+
+    @Override
+    public boolean affects(String constant) {
+        return super.affects(constant) || csv.affects(constant);
+    }
+
+    @Override
+    public String mapInvokeDynamicMethodName(String name, String descriptor) {
+        return csv.mapMethodName(name);
+    }
+
+    @Override
+    public String mapFieldName(String owner, String name, String descriptor) {
+        ClassMapping.Member field = findField(owner, name);
+        return field != null ? field.name() : csv.mapFieldName(name);
+    }
+}
@@ -1,25 +1,70 @@
 package ru.squareland.mapper;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.Type;
-import org.objectweb.asm.tree.*;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.signature.SignatureReader;
+import org.objectweb.asm.signature.SignatureVisitor;
+import ru.squareland.ClassHierarchy;
 import ru.squareland.ClassMapping;
+import ru.squareland.Log;
+import ru.squareland.Metrics;
 
 import java.io.*;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Notch2SrgMapper extends Mapper {
-    private final Map<String, String> packages = new HashMap<>();
-    private final Map<String, ClassMapping> obfuscatedClasses = new HashMap<>();
-    private final Map<String, ClassMapping> classes = new HashMap<>();
+    private static final ClassMapping MISSING = new ClassMapping("", "");
+
+    final Map<String, String> packages;
+    final Map<String, ClassMapping> obfuscatedClasses;
+    private final Map<String, ClassMapping> classes = new ConcurrentHashMap<>();
+    private final Map<String, ClassMapping> lookups = new ConcurrentHashMap<>();
+    private final Notch2SrgMapper shared;
+    private String[] libraryPrefixes = {"java/"};
 
     public Notch2SrgMapper(String version, String side) throws IOException {
         this(Notch2SrgMapper.class.getResourceAsStream("/mappings/" + version + "/" + side + ".srg"));
     }
 
+    public Notch2SrgMapper(CompiledMappings mappings) {
+        this(mappings, null);
+    }
+
+    /**
+     * Loads the srg tables, passing every srg member name through {@code csv} when it is given,
+     * so that the member tables map obfuscated names straight to csv names.
+     */
+    protected Notch2SrgMapper(CompiledMappings mappings, Srg2CsvMapper csv) {
+        this.packages = new HashMap<>();
+        this.obfuscatedClasses = new HashMap<>();
+        this.shared = null;
+        mappings.forEachPackage(packages::put);
+        mappings.forEachClass((obfuscatedName, name) -> {
+            ClassMapping mapping = new ClassMapping(obfuscatedName, name);
+            obfuscatedClasses.put(obfuscatedName, mapping);
+            classes.put(name, mapping);
+        });
+        mappings.forEachField((obfuscatedClassName, obfuscatedName, name) ->
+            obfuscatedClasses.get(obfuscatedClassName).fields.put(obfuscatedName, "", csv != null ? csv.mapFieldName(name) : name, ""));
+        mappings.forEachMethod((obfuscatedClassName, obfName, obfSignature, name, signature) ->
+            obfuscatedClasses.get(obfuscatedClassName).methods.put(obfName, obfSignature, csv != null ? csv.mapMethodName(name) : name, signature));
+    }
+
+    /**
+     * Fork of {@code shared}: lookups fall through to it, while classes linked here, including private
+     * copies of shared classes whose place in the hierarchy changes, stay in this mapper.
+     */
+    protected Notch2SrgMapper(Notch2SrgMapper shared) {
+        this.packages = shared.packages;
+        this.obfuscatedClasses = new ConcurrentHashMap<>();
+        this.shared = shared;
+        this.libraryPrefixes = shared.libraryPrefixes;
+    }
+
     public Notch2SrgMapper(InputStream stream) throws IOException {
+        this.packages = new HashMap<>();
+        this.obfuscatedClasses = new HashMap<>();
+        this.shared = null;
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
             String line;
             while ((line = reader.readLine()) != null) {
@@ -47,7 +92,7 @@ public class Notch2SrgMapper extends Mapper {
                             String obfuscatedName = obfPath.substring(obfPath.lastIndexOf('/') + 1);
                             String className = deobfPath.substring(0, deobfPath.lastIndexOf('/'));
                             String name = deobfPath.substring(deobfPath.lastIndexOf('/') + 1);
-                            System.out.println("Found field named " + obfuscatedName + " (" + name + ") in class " + obfuscatedClassName + " (" + className + ")");
+                            Log.trace(() -> "Found field named " + obfuscatedName + " (" + name + ") in class " + obfuscatedClassName + " (" + className + ")");
 
                             ClassMapping mapping = obfuscatedClasses.get(obfuscatedClassName);
                             mapping.fields.put(obfuscatedName, "", name, "");
@@ -62,7 +107,7 @@ public class Notch2SrgMapper extends Mapper {
                             String obfName = obfPath.substring(obfPath.lastIndexOf('/') + 1);
                             String className = path.substring(0, path.lastIndexOf('/'));
                             String name = path.substring(path.lastIndexOf('/') + 1);
-                            System.out.println("Found method named " + obfName + " (" + name + ") in class " + obfuscatedClassName + " (" + className + ")");
+                            Log.trace(() -> "Found method named " + obfName + " (" + name + ") in class " + obfuscatedClassName + " (" + className + ")");
 
                             ClassMapping mapping = obfuscatedClasses.get(obfuscatedClassName);
                             mapping.methods.put(obfName, obfSignature, name, signature);
@@ -73,265 +118,222 @@ public class Notch2SrgMapper extends Mapper {
         }
     }
 
+    /**
+     * Sets the package prefixes (such as {@code com/google/}) of libraries that neither the mappings nor the
+     * remapped jars define. Classes under them are never looked up or linked. {@code java/} is always excluded.
+     */
+    public void setLibraryPrefixes(Collection<String> prefixes) {
+        Set<String> all = new LinkedHashSet<>();
+        all.add("java/");
+        all.addAll(prefixes);
+        this.libraryPrefixes = all.toArray(new String[0]);
+        lookups.clear();
+    }
+
+    /**
+     * A descriptor or signature is affected if it names a class that {@link #affectsClass affects} this mapper.
+     * Other constants, such as member names and string literals, never are.
+     */
     @Override
-    public boolean process(ClassNode node, HashSet<String> skip) {
-        String className = node.name;
-        String superName = node.superName;
-        if (skip.contains(className)) {
+    public boolean affects(String constant) {
+        if (constant.isEmpty()) {
             return false;
         }
-        skip.add(className);
-        deobfuscator.etrace("Processing class " + className);
-        deobfuscator.step++;
-        ClassMapping clazz = findObfuscated(className);
-        ClassMapping superClass = find(superName, skip);
-
-        boolean mapped = false;
-
-        if (clazz != null) {
-            mapped = true;
-            node.name = clazz.name;
+        char first = constant.charAt(0);
+        if (first == '(' || first == '<' || first == '[' || first == 'L' && constant.charAt(constant.length() - 1) == ';') {
+            References references = new References();
+            try {
+                new SignatureReader(constant).accept(references);
+            } catch (RuntimeException e) {
+                return false;
+            }
+            return references.affected;
         }
-        if (superClass != null) {
-            mapped = true;
-            node.superName = superClass.name;
-        } else {
-            deobfuscator.etrace("Missing superclass " + node.superName);
+        return false;
+    }
+
+    /**
+     * A class is affected if it is renamed or its lineage has member mappings. The latter covers unmapped
+     * classes inheriting from mapped ones, whose overriding members and member references get renamed.
+     */
+    @Override
+    public boolean affectsClass(String name) {
+        if (name.startsWith("[")) {
+            return affects(name);
         }
+        ClassMapping clazz = find(name);
+        return clazz != null && (!clazz.name.equals(name) || clazz.mapsMembers());
+    }
 
-        List<ClassMapping> interfaces = new ArrayList<>();
-        for (int i = 0; i < node.interfaces.size(); i++) {
-            ClassMapping interfaceClass = find(node.interfaces.get(i), skip);
-            if (interfaceClass != null) {
-                mapped = true;
-                interfaces.add(interfaceClass);
-                node.interfaces.set(i, interfaceClass.name);
+    @Override
+    public String fingerprint() {
+        return "libraries=" + String.join(",", libraryPrefixes);
+    }
+
+    private boolean isLibrary(String name) {
+        for (String prefix : libraryPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
             }
         }
+        return false;
+    }
+
+    @Override
+    public Notch2SrgMapper fork() {
+        return new Notch2SrgMapper(this);
+    }
 
+    @Override
+    public String map(String internalName) {
+        ClassMapping clazz = find(internalName);
+        return clazz != null ? clazz.name : internalName;
+    }
+
+    @Override
+    public String mapMethodName(String owner, String name, String descriptor) {
+        ClassMapping.Member method = findMethod(owner, name, descriptor);
+        return method != null ? method.name() : name;
+    }
+
+    @Override
+    public String mapFieldName(String owner, String name, String descriptor) {
+        ClassMapping.Member field = findField(owner, name);
+        return field != null ? field.name() : name;
+    }
+
+    protected ClassMapping.Member findMethod(String owner, String name, String descriptor) {
+        ClassMapping clazz = find(owner);
         if (clazz == null) {
-            clazz = new ClassMapping(className, className);
-            clazz.parent = superClass;
-            clazz.interfaces.addAll(interfaces);
-            classes.put(className, clazz);
+            return null;
+        }
+        ClassMapping.Member method = clazz.findMethod(name, descriptor, true, true);
+        if (method != null && Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace(() -> "Renamed method " + owner + "." + name + descriptor + " to " + method.name());
         }
+        return method;
+    }
 
-        for (FieldNode field : node.fields) {
-            ClassMapping.Member mm = clazz.findField(field.name, "", true, false, deobfuscator::etrace);
-            if (mm != null) {
-                deobfuscator.etrace("Found field mapping for " + field.name + ": " + mm.name() + " (" + field.desc + ")");
-                mapped = true;
-                field.name = mm.name();
-                if (!mm.desc().isEmpty()) {
-                    deobfuscator.etrace("!WARN! updated field desc from " + field.desc + " to " + mm.desc());
-                    field.desc = mm.desc();
-                }
-            }
-            String d = descriptor(field.desc, skip);
-            if (!d.equals(field.desc)) {
-                mapped = true;
-                field.desc = d;
-            }
+    protected ClassMapping.Member findField(String owner, String name) {
+        ClassMapping clazz = find(owner);
+        if (clazz == null) {
+            return null;
+        }
+        ClassMapping.Member field = clazz.findField(name, "", true, true);
+        if (field != null && Log.isEnabled(Log.Level.TRACE)) {
+            Log.trace(() -> "Renamed field " + owner + "." + name + " to " + field.name());
         }
-        for (MethodNode method : node.methods) {
-            deobfuscator.etrace("Mapping method " + method.name + method.desc);
-            ClassMapping.Member mm = clazz.findMethod(method.name, method.desc, true, true, deobfuscator::etrace);
-            if (mm != null) {
-                mapped = true;
-                method.name = mm.name();
-                method.desc = mm.desc();
-                deobfuscator.etrace("Renamed to " + method.name + method.desc);
+        return field;
+    }
+
+    @Override
+    public void link(ClassHierarchy hierarchy) {
+        for (ClassHierarchy.Node node : hierarchy.sorted()) {
+            if (isLibrary(node.name())) {
+                continue;
             }
-            {
-                String d = fixMethodDesc(method.desc, skip);
-                if (!method.desc.equals(d)) {
-                    mapped = true;
-                    method.desc = d;
-                    deobfuscator.etrace("Fixed desc to " + method.desc);
-                }
+            ClassMapping clazz = register(node.name());
+            ClassMapping parent = node.superName() == null ? null : resolve(node.superName());
+            if (parent != null) {
+                Log.trace(() -> "class " + clazz.name + " extends " + parent.name);
+                clazz.parent = parent;
+            } else if (node.superName() != null && !isLibrary(node.superName())) {
+                Metrics.count(Metrics.Counter.MISSING_SUPERCLASSES);
+                Log.debug(() -> "Missing superclass " + node.superName() + " of " + node.name());
             }
-            if (method.localVariables != null) {
-                for (LocalVariableNode lv : method.localVariables) {
-                    String d = descriptor(lv.desc, skip);
-                    if (!d.equals(lv.desc)) {
-                        mapped = true;
-                        lv.desc = d;
-                    }
+            List<ClassMapping> interfaces = new ArrayList<>();
+            for (String itf : node.interfaces()) {
+                ClassMapping i = resolve(itf);
+                if (i != null) {
+                    Log.trace(() -> "class " + clazz.name + " implements " + i.name);
+                    interfaces.add(i);
+                } else if (!isLibrary(itf)) {
+                    Metrics.count(Metrics.Counter.MISSING_INTERFACES);
+                    Log.debug(() -> "Missing interface " + itf + " of " + node.name());
                 }
             }
+            clazz.interfaces = interfaces;
         }
-        for (MethodNode method : node.methods) {
-            deobfuscator.etrace("Mapping method instructions in " + method.name + method.desc);
-            for (AbstractInsnNode insn : method.instructions) {
-                if (insn instanceof MethodInsnNode mi) {
-                    ClassMapping cm = mi.owner.equals(clazz.name) ? clazz : find(mi.owner, skip);
-                    if (cm != null) {
-                        deobfuscator.etrace("Searching method " + mi.name + mi.desc + " in class " + cm.name + " (" + cm.obfuscatedName + ")");
-                        ClassMapping.Member m = cm.findMethod(mi.name, mi.desc, true, true, deobfuscator::etrace);
-                        if (m != null) {
-                            mapped = true;
-                            mi.name = m.name();
-                            mi.desc = m.desc();
-                            deobfuscator.etrace("Found " + mi.name + mi.desc);
-                        }
-                        if (!mi.owner.equals(cm.name)) {
-                            mapped = true;
-                            mi.owner = cm.name;
-                        }
-                    }
-                    String d = fixMethodDesc(mi.desc, skip);
-                    if (!d.equals(mi.desc)) {
-                        mapped = true;
-                        mi.desc = d;
-                    }
-                } else if (insn instanceof FieldInsnNode fi) {
-                    deobfuscator.etrace("Was n=" + fi.name + " d=" + fi.desc + " o=" + fi.owner);
-                    String d = descriptor(fi.desc, skip);
-                    if (!d.equals(fi.desc)) {
-                        mapped = true;
-                        fi.desc = d;
-                    }
+        for (ClassMapping clazz : classes.values()) {
+            clazz.invalidate();
+        }
+        lookups.clear();
+    }
 
-                    ClassMapping cm = find(fi.owner, skip);
-
-                    if (cm != null) {
-                        mapped = true;
-                        fi.owner = cm.name;
-                        ClassMapping.Member m = cm.findField(fi.name, "", true, true, deobfuscator::etrace);
-                        if (m != null) {
-                            fi.name = m.name();
-                            if (!m.desc().isEmpty()) {
-                                fi.desc = m.desc();
-                            }
-                        }
-                    }
-                    deobfuscator.etrace("Now n=" + fi.name + " d=" + fi.desc + " o=" + fi.owner);
-                } else if (insn instanceof TypeInsnNode ti) {
-                    Type ty = Type.getObjectType(ti.desc);
-                    ClassMapping cm = find(ty.getClassName(), skip);
-                    if (cm != null) {
-                        mapped = true;
-                        ti.desc = Type.getType(descriptor(ti.desc, ty, skip)).getInternalName();
-                    }
-                } else if (insn instanceof LdcInsnNode li && li.cst instanceof Type ty) {
-                    ClassMapping cm = find(ty.getClassName(), skip);
-                    if (cm != null) {
-                        mapped = true;
-                        li.cst = Type.getType(descriptor(ty.getDescriptor(), ty, skip));
-                    }
-                }
-            }
+    private ClassMapping register(String name) {
+        ClassMapping clazz = resolve(name);
+        if (clazz == null) {
+            clazz = new ClassMapping(name, name);
+            classes.put(name, clazz);
+        } else if (shared != null && classes.get(clazz.name) != clazz) {
+            clazz = new ClassMapping(clazz);
+            obfuscatedClasses.put(clazz.obfuscatedName, clazz);
+            classes.put(clazz.name, clazz);
         }
-        deobfuscator.step--;
-        return mapped;
+        return clazz;
     }
 
-    public void loadRelations(File file) throws IOException {
-        try (ZipFile binary = new ZipFile(file)) {
-            HashSet<String> skip = new HashSet<>(Set.of("java/lang/Object"));
-            Enumeration<? extends ZipEntry> entries = binary.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                if (!entry.getName().endsWith(".class")) {
-                    continue;
-                }
-                try (InputStream stream = binary.getInputStream(entry)) {
-                    ClassReader reader = new ClassReader(stream);
-                    ClassMapping clazz = find(reader.getClassName(), skip);
-                    ClassMapping parent = find(reader.getSuperName(), skip);
-                    String[] itfs = reader.getInterfaces();
-                    if (clazz != null && parent != null) {
-                        deobfuscator.etrace("class " + clazz.name + " extends " + parent.name);
-                        clazz.parent = parent;
-                    }
-                    if (clazz != null && itfs.length > 0) {
-                        List<ClassMapping> interfaces = new ArrayList<>();
-                        for (String itf : itfs) {
-                            ClassMapping i = find(itf, skip);
-                            if (i != null) {
-                                deobfuscator.etrace("class " + clazz.name + " implements " + i.name);
-                                interfaces.add(i);
-                            }
-                        }
-                        clazz.interfaces.addAll(interfaces);
-                    }
-                }
-            }
+    private final class References extends SignatureVisitor {
+        private String current;
+        boolean affected;
+
+        References() {
+            super(Opcodes.ASM9);
+        }
+
+        @Override
+        public void visitClassType(String name) {
+            current = name;
+            affected |= affectsClass(name);
+        }
+
+        @Override
+        public void visitInnerClassType(String name) {
+            current = current + '$' + name;
+            affected |= affectsClass(current);
         }
     }
 
     public ClassMapping findObfuscated(String name) {
-        return obfuscatedClasses.get(name);
+        ClassMapping clazz = obfuscatedClasses.get(name);
+        return clazz == null && shared != null ? shared.findObfuscated(name) : clazz;
     }
 
     public ClassMapping findDeobfuscated(String name) {
-        return classes.get(name);
+        ClassMapping clazz = classes.get(name);
+        return clazz == null && shared != null ? shared.findDeobfuscated(name) : clazz;
     }
 
-    public ClassMapping find(String name, HashSet<String> skip) {
-        if (name.startsWith("java/")) {
+    /**
+     * Looks a class up by obfuscated, then by deobfuscated name. Results, including misses, are remembered
+     * until the next {@link #link}, so repeated lookups of the same class cost a single probe.
+     */
+    public ClassMapping find(String name) {
+        if (isLibrary(name)) {
             return null;
         }
-        ClassMapping first = findObfuscated(name);
-        if (first == null) {
-            first = findDeobfuscated(name);
-        }
-
-        if (first == null && !skip.contains(name)) {
-            deobfuscator.trace("Searching node for class: " + name);
-            deobfuscator.step++;
-            ClassNode node = deobfuscator.loadNode(name, skip);
-            deobfuscator.step--;
-            if (node != null) {
-                deobfuscator.step++;
-                process(node, skip);
-                deobfuscator.step--;
-                return findDeobfuscated(name);
-            } else {
-                deobfuscator.etrace("Missing node: " + name);
-            }
+        Metrics.count(Metrics.Counter.CLASS_LOOKUPS);
+        ClassMapping clazz = lookups.get(name);
+        if (clazz == null) {
+            ClassMapping resolved = resolve(name);
+            clazz = resolved != null ? resolved : MISSING;
+            lookups.put(name, clazz);
         }
-        return first;
-    }
-
-    private String descriptor(String desc, Type type, HashSet<String> skip) {
-        if (type.getSort() == Type.ARRAY) {
-            Type et = type.getElementType();
-            return '[' + descriptor(desc, et, skip);
-        } else if (type.getSort() == Type.OBJECT) {
-            ClassMapping mapping = find(type.getInternalName(), skip);
-            if (mapping != null) {
-                return "L" + mapping.name + ";";
-            }
+        if (clazz == MISSING) {
+            Metrics.count(Metrics.Counter.CLASS_LOOKUP_MISSES);
+            return null;
         }
-        return type.getClassName();
-    }
-
-    private String descriptor(String desc, HashSet<String> skip) {
-        Type type = Type.getType(desc);
-        return descriptor(desc, type, skip);
+        return clazz;
     }
 
-    private String fixMethodDesc(String desc, HashSet<String> skip) {
-        Type ret = Type.getReturnType(desc);
-        Type[] args = Type.getArgumentTypes(desc);
-        boolean modified = false;
-        for (int i = 0; i < args.length; i++) {
-            Type a = args[i];
-            ClassMapping am = find(a.getInternalName(), skip);
-            if (am != null) {
-                modified = true;
-                args[i] = Type.getType(descriptor(a.getDescriptor(), skip));
-            }
-        }
-        ClassMapping rm = find(ret.getInternalName(), skip);
-        if (rm != null) {
-            modified = true;
-            ret = Type.getType(descriptor(ret.getDescriptor(), skip));
+    private ClassMapping resolve(String name) {
+        if (isLibrary(name)) {
+            return null;
         }
-        if (modified) {
-            return Type.getMethodDescriptor(ret, args);
+        ClassMapping first = findObfuscated(name);
+        if (first == null) {
+            first = findDeobfuscated(name);
         }
-        return desc;
+        return first;
     }
 }
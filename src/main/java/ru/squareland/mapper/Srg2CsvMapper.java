@@ -1,26 +1,31 @@
 package ru.squareland.mapper;
 
-import org.objectweb.asm.tree.*;
-import ru.squareland.Deobfuscator;
+import ru.squareland.ClassHierarchy;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Srg2CsvMapper extends Mapper {
-    public static final Pattern ID_PATTERN = Pattern.compile("^[a-z]+_(\\d+)_\\w+");
-    private static final Map<String, Integer> IDS = new HashMap<>();
-
-    private final Map<Integer, String> methods = new HashMap<>();
-    private final Map<Integer, String> fields = new HashMap<>();
+    final IdNames methods;
+    final IdNames fields;
     private final Map<Integer, List<String>> params = new HashMap<>();
-    private Deobfuscator deobfuscator;
+
+    /**
+     * Looks names up in the csv tables of {@code mappings} directly, without copying them to the heap.
+     */
+    public Srg2CsvMapper(CompiledMappings mappings) {
+        this.methods = mappings.csvMethods();
+        this.fields = mappings.csvFields();
+    }
 
     public Srg2CsvMapper(String version) throws IOException {
         InputStream mis = Srg2CsvMapper.class.getResourceAsStream("/mappings/" + version + "/methods.csv");
         InputStream fis = Srg2CsvMapper.class.getResourceAsStream("/mappings/" + version + "/fields.csv");
         InputStream pis = Srg2CsvMapper.class.getResourceAsStream("/mappings/" + version + "/params.csv");
+        IdTable methods = new IdTable();
+        IdTable fields = new IdTable();
+        this.methods = methods;
+        this.fields = fields;
         try (BufferedReader mr = new BufferedReader(new InputStreamReader(mis))) {
             String line;
             while ((line = mr.readLine()) != null) {
@@ -62,52 +67,77 @@ public class Srg2CsvMapper extends Mapper {
         }*/
     }
 
+    /**
+     * Returns the numeric id of an srg name such as {@code func_70071_h_} or {@code field_70170_p},
+     * or -1 if the name does not have the {@code prefix_id_suffix} form.
+     */
     public static int idOf(String name) {
-        return IDS.computeIfAbsent(name, n -> {
-            Matcher matcher = ID_PATTERN.matcher(name);
-            if (matcher.matches()) {
-                String value = matcher.group(1);
-                return Integer.parseInt(value);
-            }
+        int length = name.length();
+        int i = 0;
+        while (i < length && name.charAt(i) >= 'a' && name.charAt(i) <= 'z') {
+            i++;
+        }
+        if (i == 0 || i == length || name.charAt(i) != '_') {
             return -1;
-        });
-    }
-
-    @Override
-    public boolean process(ClassNode node, HashSet<String> skip) {
-        boolean mapped = false;
-        for (FieldNode field : node.fields) {
-            int id = idOf(field.name);
-            if (id >= 0) {
-                mapped = true;
-                field.name = Objects.requireNonNull(fields.computeIfAbsent(id, i -> field.name));
-            }
         }
-        for (MethodNode method : node.methods) {
-            int id = idOf(method.name);
-            if (id >= 0) {
-                mapped = true;
-                method.name = Objects.requireNonNull(methods.computeIfAbsent(id, i -> method.name));
+        int start = ++i;
+        long id = 0;
+        for (char c; i < length && (c = name.charAt(i)) >= '0' && c <= '9'; i++) {
+            id = id * 10 + (c - '0');
+            if (id > Integer.MAX_VALUE) {
+                return -1;
             }
-            for (AbstractInsnNode insn : method.instructions) {
-                if (insn instanceof FieldInsnNode fi) {
-                    int fid = idOf(fi.name);
-                    if (fid >= 0) {
-                        mapped = true;
-                        fi.name = Objects.requireNonNull(fields.computeIfAbsent(fid, i -> fi.name));
-                    }
-                } else if (insn instanceof MethodInsnNode mi) {
-                    int mid = idOf(mi.name);
-                    if (mid >= 0) {
-                        mapped = true;
-                        mi.name = Objects.requireNonNull(methods.computeIfAbsent(mid, i -> mi.name));
-                    }
-                }
+        }
+        if (i == start || i == length || name.charAt(i) != '_' || ++i == length) {
+            return -1;
+        }
+        for (; i < length; i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_')) {
+                return -1;
             }
         }
-        return mapped;
+        return (int) id;
+    }
+
+    @Override
+    public String mapMethodName(String owner, String name, String descriptor) {
+        return mapMethodName(name);
+    }
+
+    @Override
+    public String mapInvokeDynamicMethodName(String name, String descriptor) {
+        return mapMethodName(name);
+    }
+
+    public String mapMethodName(String name) {
+        int id = idOf(name);
+        return id >= 0 ? methods.get(id, name) : name;
+    }
+
+    @Override
+    public String mapFieldName(String owner, String name, String descriptor) {
+        return mapFieldName(name);
+    }
+
+    public String mapFieldName(String name) {
+        int id = idOf(name);
+        return id >= 0 ? fields.get(id, name) : name;
+    }
+
+    /**
+     * Only srg member names with a csv name are affected.
+     */
+    @Override
+    public boolean affects(String constant) {
+        return idOf(constant) >= 0 && (!mapMethodName(constant).equals(constant) || !mapFieldName(constant).equals(constant));
+    }
+
+    @Override
+    public boolean affectsClass(String name) {
+        return false;
     }
 
     @Override
-    public void loadRelations(File file) {}
+    public void link(ClassHierarchy hierarchy) {}
 }
@@ -0,0 +1,237 @@
+package ru.squareland.archive;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks {@link ArchiveIndex} and {@link ArchiveWriter} against {@link ZipFile} and {@link JarInputStream}.
+ */
+class ArchiveRoundTripTest {
+    private static final byte[] TEXT = "The quick brown fox jumps over the lazy dog.\n".repeat(200).getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOISE = new Random(1).ints(4096).collect(ByteArrayOutputStream::new, ByteArrayOutputStream::write, (a, b) -> {}).toByteArray();
+
+    @TempDir
+    Path temp;
+
+    /**
+     * A jar with a manifest, a directory, a stored entry, deflated entries written with data descriptors,
+     * an empty entry and a name outside ASCII, as {@link JarOutputStream} writes them.
+     */
+    private File input() throws IOException {
+        File file = temp.resolve("input.jar").toFile();
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        manifest.getMainAttributes().putValue("X-Test", "round trip");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(file), manifest)) {
+            out.putNextEntry(new ZipEntry("assets/"));
+            out.closeEntry();
+            ZipEntry stored = new ZipEntry("assets/stored.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(NOISE.length);
+            stored.setCrc(crc(NOISE));
+            out.putNextEntry(stored);
+            out.write(NOISE);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("assets/text.txt"));
+            out.write(TEXT);
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("assets/empty.txt"));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry("assets/ünïcode.txt"));
+            out.write(TEXT, 0, 100);
+            out.closeEntry();
+        }
+        return file;
+    }
+
+    @Test
+    void indexReadsWhatZipFileReads() throws IOException {
+        File input = input();
+        try (ZipFile zip = new ZipFile(input); ArchiveIndex index = ArchiveIndex.open(input)) {
+            List<? extends ZipEntry> expected = Collections.list(zip.entries());
+            assertEquals(expected.size(), index.entries().size());
+            boolean descriptors = false;
+            for (int i = 0; i < expected.size(); i++) {
+                ZipEntry zipEntry = expected.get(i);
+                ArchiveIndex.Entry entry = index.entries().get(i);
+                assertEquals(zipEntry.getName(), entry.name());
+                assertEquals(zipEntry.getMethod(), entry.method());
+                assertEquals(zipEntry.getCrc(), entry.crc());
+                assertEquals(zipEntry.getSize(), entry.size());
+                assertEquals(zipEntry.getCompressedSize(), entry.compressedSize());
+                assertArrayEquals(zip.getInputStream(zipEntry).readAllBytes(), index.read(entry), entry.name());
+                assertSame(entry, index.get(entry.name()));
+                descriptors |= (entry.flags() & 8) != 0;
+            }
+            assertTrue(descriptors, "no entry was written with a data descriptor");
+        }
+    }
+
+    @Test
+    void copiedEntriesKeepTheirDataAndCompression() throws IOException {
+        File input = input();
+        for (Compression compression : Compression.values()) {
+            File output = temp.resolve("copy-" + compression + ".jar").toFile();
+            try (ArchiveIndex index = ArchiveIndex.open(input); ArchiveWriter writer = new ArchiveWriter(output, compression)) {
+                for (ArchiveIndex.Entry entry : index.entries()) {
+                    writer.copy(index, entry);
+                }
+            }
+            try (ZipFile expected = new ZipFile(input); ZipFile actual = new ZipFile(output)) {
+                List<? extends ZipEntry> entries = Collections.list(expected.entries());
+                assertEquals(entries.size(), actual.size());
+                for (ZipEntry entry : entries) {
+                    ZipEntry copy = actual.getEntry(entry.getName());
+                    assertNotNull(copy, entry.getName());
+                    assertEquals(entry.getMethod(), copy.getMethod(), entry.getName());
+                    assertEquals(entry.getCompressedSize(), copy.getCompressedSize(), entry.getName());
+                    assertArrayEquals(expected.getInputStream(entry).readAllBytes(), actual.getInputStream(copy).readAllBytes(), entry.getName());
+                }
+            }
+            assertEquals(contents(input), streamed(output));
+        }
+    }
+
+    @Test
+    void writtenEntriesReadBack() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nX-Test: written\r\n\r\n".getBytes(StandardCharsets.UTF_8));
+        entries.put("a/Text.class", TEXT);
+        entries.put("a/Noise.class", NOISE);
+        entries.put("a/Empty.class", new byte[0]);
+        for (Compression compression : Compression.values()) {
+            File output = temp.resolve("write-" + compression + ".jar").toFile();
+            try (ArchiveWriter writer = new ArchiveWriter(output, compression)) {
+                for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                    writer.write(entry.getKey(), entry.getValue(), System.currentTimeMillis());
+                }
+            }
+            try (ZipFile zip = new ZipFile(output)) {
+                for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                    ZipEntry zipEntry = zip.getEntry(entry.getKey());
+                    assertArrayEquals(entry.getValue(), zip.getInputStream(zipEntry).readAllBytes(), entry.getKey());
+                    assertEquals(crc(entry.getValue()), zipEntry.getCrc());
+                }
+                assertEquals(compression == Compression.STORED ? ZipEntry.STORED : ZipEntry.DEFLATED, zip.getEntry("a/Text.class").getMethod());
+                assertEquals(ZipEntry.STORED, zip.getEntry("a/Noise.class").getMethod(), "incompressible data should be stored");
+            }
+            try (ArchiveIndex index = ArchiveIndex.open(output)) {
+                for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                    assertArrayEquals(entry.getValue(), index.read(index.get(entry.getKey())), entry.getKey());
+                }
+            }
+            Map<String, String> streamed = streamed(output);
+            assertEquals("written", streamed.get("X-Test"));
+            assertEquals(contents(output), streamed);
+        }
+    }
+
+    @Test
+    void fixedTimesMakeIdenticalArchives() throws IOException {
+        File input = input();
+        byte[][] archives = new byte[2][];
+        for (int i = 0; i < archives.length; i++) {
+            File output = temp.resolve("fixed-" + i + ".jar").toFile();
+            try (ArchiveIndex index = ArchiveIndex.open(input); ArchiveWriter writer = new ArchiveWriter(output, Compression.DEFAULT, true)) {
+                for (ArchiveIndex.Entry entry : index.entries()) {
+                    writer.copy(index, entry);
+                }
+                writer.write("a/Text.class", TEXT, 1_000_000_000_000L + i * 86_400_000L);
+            }
+            archives[i] = Files.readAllBytes(output.toPath());
+        }
+        assertArrayEquals(archives[0], archives[1]);
+    }
+
+    @Test
+    void zip64EntryCountRoundTrips() throws IOException {
+        int count = 0x10000 + 10;
+        File written = temp.resolve("written64.zip").toFile();
+        try (ArchiveWriter writer = new ArchiveWriter(written, Compression.FAST)) {
+            for (int i = 0; i < count; i++) {
+                writer.write("e/" + i, Integer.toString(i).getBytes(StandardCharsets.UTF_8), 0);
+            }
+        }
+        ByteBuffer tail = ByteBuffer.wrap(Files.readAllBytes(written.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        int end = tail.limit() - 22;
+        assertEquals(ArchiveIndex.END_OF_CENTRAL_DIRECTORY, tail.getInt(end));
+        assertEquals(0xFFFF, tail.getShort(end + 10) & 0xFFFF, "entry count should defer to the Zip64 record");
+        assertEquals(ArchiveIndex.ZIP64_END_LOCATOR, tail.getInt(end - 20));
+        long record = tail.getLong(end - 12);
+        assertEquals(ArchiveIndex.ZIP64_END_OF_CENTRAL_DIRECTORY, tail.getInt((int) record));
+        assertEquals(count, tail.getLong((int) record + 32));
+        try (ZipFile zip = new ZipFile(written)) {
+            assertEquals(count, zip.size());
+            assertEquals("65545", new String(zip.getInputStream(zip.getEntry("e/65545")).readAllBytes(), StandardCharsets.UTF_8));
+        }
+        File foreign = temp.resolve("foreign64.zip").toFile();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(foreign))) {
+            for (int i = 0; i < count; i++) {
+                out.putNextEntry(new ZipEntry("e/" + i));
+                out.write(Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        for (File file : List.of(written, foreign)) {
+            try (ArchiveIndex index = ArchiveIndex.open(file)) {
+                assertEquals(count, index.entries().size(), file.getName());
+                assertEquals("65545", new String(index.read(index.get("e/65545")), StandardCharsets.UTF_8), file.getName());
+            }
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static Map<String, String> contents(File file) throws IOException {
+        Map<String, String> contents = new TreeMap<>();
+        try (ZipFile zip = new ZipFile(file)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (!entry.getName().equals("META-INF/MANIFEST.MF")) {
+                    contents.put(entry.getName(), HexFormat.of().formatHex(zip.getInputStream(entry).readAllBytes()));
+                }
+            }
+            contents.put("X-Test", new Manifest(zip.getInputStream(zip.getEntry("META-INF/MANIFEST.MF"))).getMainAttributes().getValue("X-Test"));
+        }
+        return contents;
+    }
+
+    /**
+     * Reads {@code file} the way a class loader reading a stream does, which relies on the local headers
+     * and verifies every entry's size and CRC as it goes.
+     */
+    private static Map<String, String> streamed(File file) throws IOException {
+        Map<String, String> contents = new TreeMap<>();
+        try (JarInputStream in = new JarInputStream(new FileInputStream(file))) {
+            Manifest manifest = in.getManifest();
+            assertNotNull(manifest, "manifest of " + file.getName());
+            contents.put("X-Test", manifest.getMainAttributes().getValue("X-Test"));
+            JarEntry entry;
+            while ((entry = in.getNextJarEntry()) != null) {
+                contents.put(entry.getName(), HexFormat.of().formatHex(in.readAllBytes()));
+            }
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,65 @@
+package ru.squareland.mapper;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class Srg2CsvMapperTest {
+    /**
+     * The pattern {@link Srg2CsvMapper#idOf} replaced.
+     */
+    private static final Pattern ID_PATTERN = Pattern.compile("^[a-z]+_(\\d+)_\\w+");
+
+    private static int expectedId(String name) {
+        Matcher matcher = ID_PATTERN.matcher(name);
+        if (!matcher.matches()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(matcher.group(1));
+        } catch (NumberFormatException e) {
+            // the pattern let ids beyond int range through to a failing parse; idOf rejects them
+            return -1;
+        }
+    }
+
+    @Test
+    void idOfAgreesWithThePatternOnEdgeCases() {
+        for (String name : List.of("", "_", "a", "a_", "a_1", "a_1_", "a_1_b", "func_70071_h_", "field_70170_p",
+            "func_0_a", "field_1_B_", "A_1_b", "a1_2_b", "a__b", "a_b_c", "_1_a", "func_1_a$b", "func_12_ab c",
+            "func_1_é", "func_2147483647_a", "func_2147483648_a", "func_99999999999_a", "x_0_0", "p_70071_1_")) {
+            assertEquals(expectedId(name), Srg2CsvMapper.idOf(name), name);
+        }
+    }
+
+    @Test
+    void idOfAgreesWithThePatternOnMappingNames() throws IOException {
+        List<String> names = new ArrayList<>();
+        for (String resource : List.of("joined.srg", "methods.csv", "fields.csv")) {
+            InputStream stream = Srg2CsvMapperTest.class.getResourceAsStream("/mappings/1.7.10/" + resource);
+            assertNotNull(stream, resource);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    for (String token : line.split("[ ,/]")) {
+                        names.add(token);
+                    }
+                }
+            }
+        }
+        for (String name : names) {
+            assertEquals(expectedId(name), Srg2CsvMapper.idOf(name), name);
+        }
+    }
+}